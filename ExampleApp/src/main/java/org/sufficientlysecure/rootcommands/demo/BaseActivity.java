@@ -31,6 +31,9 @@ import android.view.View;
 public class BaseActivity extends Activity {
     public static final String TAG = "Demo";
 
+    // only touched on the UI thread
+    private Thread benchmarkThread = null;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -140,4 +143,23 @@ public class BaseActivity extends Activity {
         }
     }
 
+    public void benchmarkOnClick(View view) {
+        if (benchmarkThread != null && benchmarkThread.isAlive()) {
+            Log.d(TAG, "Benchmark is already running");
+            return;
+        }
+        // the benchmarks take seconds, run them off the UI thread
+        benchmarkThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new OutputFramerBenchmark().run();
+                    new SubmitBenchmark().run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception!", e);
+                }
+            }
+        }, "Benchmark");
+        benchmarkThread.start();
+    }
+
 }
\ No newline at end of file
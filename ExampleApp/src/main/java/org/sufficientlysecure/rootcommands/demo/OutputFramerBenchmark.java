@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.demo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.sufficientlysecure.rootcommands.util.OutputFramer;
+
+import android.util.Log;
+
+/**
+ * Compares parsing shell output with BufferedReader, indexOf and split (as Shell did before) with
+ * the byte based OutputFramer. Output is generated in memory to only measure parsing.
+ */
+public class OutputFramerBenchmark {
+    private static final String TOKEN = "F*D^W@#FGF";
+    private static final int LINES = 200000;
+    private static final int LINES_PER_COMMAND = 1000;
+    private static final int ROUNDS = 5;
+
+    private final byte[] output;
+
+    public OutputFramerBenchmark() {
+        // looks like the output of ls -lR
+        StringBuilder sb = new StringBuilder();
+        int id = 0;
+        for (int i = 0; i < LINES; i++) {
+            sb.append("-rw-r--r-- root     root        12345 2012-09-24 19:51 file").append(i)
+                    .append('\n');
+            if (i % LINES_PER_COMMAND == LINES_PER_COMMAND - 1) {
+                sb.append(TOKEN).append(' ').append(id++).append(" 0\n");
+            }
+        }
+        output = sb.toString().getBytes();
+    }
+
+    public void run() throws IOException {
+        // warm up
+        runBufferedReader();
+        runFramer(false);
+        runFramer(true);
+
+        long bufferedReader = 0;
+        long framer = 0;
+        long framerDecoding = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            runBufferedReader();
+            bufferedReader += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runFramer(false);
+            framer += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runFramer(true);
+            framerDecoding += System.nanoTime() - start;
+        }
+
+        Log.d(BaseActivity.TAG, "Parsing " + LINES + " lines, average of " + ROUNDS + " rounds:");
+        Log.d(BaseActivity.TAG, "BufferedReader: " + bufferedReader / ROUNDS / 1000000 + " ms");
+        Log.d(BaseActivity.TAG, "OutputFramer: " + framer / ROUNDS / 1000000 + " ms");
+        Log.d(BaseActivity.TAG, "OutputFramer decoding lines: " + framerDecoding / ROUNDS
+                / 1000000 + " ms");
+    }
+
+    private int runBufferedReader() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
+                output)));
+        int tokens = 0;
+        int lines = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int pos = line.indexOf(TOKEN);
+            if (pos >= 0) {
+                String fields[] = line.substring(pos).split(" ");
+                tokens += Integer.parseInt(fields[1]) + Integer.parseInt(fields[2]);
+            } else {
+                lines++;
+            }
+        }
+        reader.close();
+        return lines + tokens;
+    }
+
+    private int runFramer(final boolean decodeLines) throws IOException {
+        OutputFramer framer = new OutputFramer(new ByteArrayInputStream(output), TOKEN);
+        final int[] counts = new int[2];
+        OutputFramer.Listener listener = new OutputFramer.Listener() {
+            public void onLine(byte[] buffer, int offset, int length) {
+                if (decodeLines) {
+                    counts[0] += new String(buffer, offset, length).length();
+                } else {
+                    counts[0]++;
+                }
+            }
+
+            public boolean onToken(int id, int exitCode) {
+                counts[1] += id + exitCode;
+                return true;
+            }
+
+            public void onProcessId(int id, int pid) {
+            }
+
+            public boolean onStreamStart(int id, long length) {
+                return false;
+            }
+
+            public int onStreamData(byte[] buffer, int offset, int length) {
+                return length;
+            }
+
+            public void onStreamEnd(int id, long written) {
+            }
+        };
+        while (framer.readFrame(listener)) {
+        }
+        framer.close();
+        return counts[0] + counts[1];
+    }
+
+}
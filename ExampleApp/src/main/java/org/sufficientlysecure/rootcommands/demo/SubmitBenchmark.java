@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.CommandResult;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
+
+import android.util.Log;
+
+/**
+ * Measures Shell.submit() throughput with 1 to 64 threads submitting to the same shell. Submit
+ * time is the time until all threads added their commands, total time includes executing them.
+ */
+public class SubmitBenchmark {
+    private static final int COMMANDS = 16384;
+    private static final int MAX_PRODUCERS = 64;
+
+    public void run() throws Exception {
+        // warm up
+        runProducers(4);
+
+        Log.d(BaseActivity.TAG, "Submitting " + COMMANDS + " commands to one shell:");
+        for (int producers = 1; producers <= MAX_PRODUCERS; producers *= 2) {
+            long[] times = runProducers(producers);
+            Log.d(BaseActivity.TAG, producers + " producers: submit " + times[0] / 1000000
+                    + " ms (" + COMMANDS * 1000000000L / Math.max(times[0], 1)
+                    + " commands/s), total " + times[1] / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * @return nanoseconds until all commands were submitted and until all were finished
+     */
+    private long[] runProducers(int producers) throws Exception {
+        final Shell shell = Shell.startShell();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch submitted = new CountDownLatch(producers);
+        final int perProducer = COMMANDS / producers;
+        final List<ResultFuture<CommandResult>> results = new ArrayList<ResultFuture<CommandResult>>();
+
+        for (int i = 0; i < producers; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    List<ResultFuture<CommandResult>> own = new ArrayList<ResultFuture<CommandResult>>(
+                            perProducer);
+                    try {
+                        start.await();
+                        for (int j = 0; j < perProducer; j++) {
+                            own.add(shell.submit(new SimpleCommand(":")));
+                        }
+                    } catch (Exception e) {
+                        Log.e(BaseActivity.TAG, "Exception!", e);
+                    }
+                    synchronized (results) {
+                        results.addAll(own);
+                    }
+                    submitted.countDown();
+                }
+            }, "Producer " + i).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        submitted.await();
+        long submitTime = System.nanoTime() - begin;
+
+        for (ResultFuture<CommandResult> result : results) {
+            result.get();
+        }
+        long totalTime = System.nanoTime() - begin;
+
+        shell.close();
+        return new long[] { submitTime, totalTime };
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Kills isolated commands of a shell. While a command is executed the shell itself waits for it, so
+ * the kill is executed on a second shell of the same kind, started when it is needed for the first
+ * time.
+ */
+// no modifier, this means it is package-private. Only our internal classes can use this.
+class CommandKiller {
+    private final Shell shell;
+    private Shell controlShell = null;
+
+    public CommandKiller(Shell shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Lists pid and parent pid of all processes using /proc/[pid]/stat
+     */
+    private static class ProcessTreeCommand extends Command {
+        private final Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+
+        public ProcessTreeCommand() {
+            super("for s in /proc/[0-9]*/stat; do read -r p c st pp r < $s; echo \"$p $pp\"; done");
+        }
+
+        @Override
+        public void output(int id, String line) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                return;
+            }
+            try {
+                Integer pid = Integer.valueOf(line.substring(0, space));
+                Integer parent = Integer.valueOf(line.substring(space + 1));
+                List<Integer> list = children.get(parent);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    children.put(parent, list);
+                }
+                list.add(pid);
+            } catch (NumberFormatException e) {
+                // process vanished or its name contains spaces
+            }
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+
+        /**
+         * Returns pid and all its descendants separated by spaces
+         */
+        public String getTreeString(int pid) {
+            StringBuilder sb = new StringBuilder();
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+            queue.add(pid);
+            while (!queue.isEmpty()) {
+                Integer next = queue.removeFirst();
+                sb.append(next).append(' ');
+                List<Integer> list = children.get(next);
+                if (list != null) {
+                    queue.addAll(list);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Kills the process of an isolated command including all processes started by it
+     *
+     * @param pid
+     *            pid of the subshell executing the command
+     * @return true if kill succeeded
+     */
+    public synchronized boolean kill(int pid) {
+        try {
+            if (controlShell == null || controlShell.isClosed()) {
+                controlShell = shell.startControlShell();
+            }
+
+            ProcessTreeCommand treeCommand = new ProcessTreeCommand();
+            controlShell.add(treeCommand).waitForFinish();
+
+            SimpleCommand killCommand = new SimpleCommand("kill -9 "
+                    + treeCommand.getTreeString(pid));
+            controlShell.add(killCommand).waitForFinish();
+
+            return killCommand.getExitCode() == 0;
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Killing command with pid " + pid + " failed!", e);
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        if (controlShell != null) {
+            try {
+                controlShell.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "IOException while closing control shell", e);
+            }
+            controlShell = null;
+        }
+    }
+
+}
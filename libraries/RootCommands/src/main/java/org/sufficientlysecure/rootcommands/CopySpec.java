@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+/**
+ * A single copy of Toolbox.copyFiles()
+ */
+public class CopySpec {
+    private final String source;
+    private final String destination;
+    private final boolean preservePermissions;
+
+    /**
+     * @param source
+     *            example: /data/data/org.adaway/files/hosts
+     * @param destination
+     *            example: /system/etc/hosts
+     * @param preservePermissions
+     *            sets the permissions of source on destination
+     */
+    public CopySpec(String source, String destination, boolean preservePermissions) {
+        this.source = source;
+        this.destination = destination;
+        this.preservePermissions = preservePermissions;
+    }
+
+    public CopySpec(String source, String destination) {
+        this(source, destination, false);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public boolean isPreservePermissions() {
+        return preservePermissions;
+    }
+
+    @Override
+    public String toString() {
+        return source + " -> " + destination;
+    }
+}
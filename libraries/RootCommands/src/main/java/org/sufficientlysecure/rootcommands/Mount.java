@@ -18,21 +18,77 @@
 package org.sufficientlysecure.rootcommands;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * An entry of /proc/mounts. Common flags are kept as bits, other flags and strings repeated in
+ * every entry are interned, so a table of many mounts stays small.
+ */
 public class Mount {
+    public static final int FLAG_RO = 1;
+    public static final int FLAG_RW = 1 << 1;
+    public static final int FLAG_NOSUID = 1 << 2;
+    public static final int FLAG_NODEV = 1 << 3;
+    public static final int FLAG_NOEXEC = 1 << 4;
+    public static final int FLAG_NOATIME = 1 << 5;
+    public static final int FLAG_NODIRATIME = 1 << 6;
+    public static final int FLAG_RELATIME = 1 << 7;
+    public static final int FLAG_SYNC = 1 << 8;
+
+    // names of the flags above, index is the bit
+    private static final String[] FLAG_NAMES = { "ro", "rw", "nosuid", "nodev", "noexec",
+            "noatime", "nodiratime", "relatime", "sync" };
+    private static final String[] NO_FLAGS = new String[0];
+
     protected final File mDevice;
     protected final File mMountPoint;
     protected final String mType;
-    protected final Set<String> mFlags;
+    protected final int mFlagBits;
+    protected final String[] mOtherFlags;
+    // view of the flags above, no set is kept per mount
+    protected final Set<String> mFlags = new FlagSet();
 
     Mount(File device, File path, String type, String flagsStr) {
         mDevice = device;
         mMountPoint = path;
-        mType = type;
-        mFlags = new HashSet<String>(Arrays.asList(flagsStr.split(",")));
+        mType = type.intern();
+
+        int flagBits = 0;
+        String[] flags = flagsStr.split(",");
+        int others = 0;
+        for (int i = 0; i < flags.length; i++) {
+            int bit = getFlagBit(flags[i]);
+            if (bit != 0) {
+                flagBits |= bit;
+            } else {
+                // keep other flags at the start of the array
+                flags[others++] = flags[i].intern();
+            }
+        }
+        mFlagBits = flagBits;
+        if (others == 0) {
+            mOtherFlags = NO_FLAGS;
+        } else {
+            mOtherFlags = new String[others];
+            System.arraycopy(flags, 0, mOtherFlags, 0, others);
+        }
+    }
+
+    /**
+     * @return the FLAG_ constant for a flag name, 0 if there is none
+     */
+    private static int getFlagBit(String flag) {
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if (FLAG_NAMES[i].equals(flag)) {
+                return 1 << i;
+            }
+        }
+        return 0;
     }
 
     public File getDevice() {
@@ -47,6 +103,44 @@ public class Mount {
         return mType;
     }
 
+    /**
+     * Returns true if all given FLAG_ constants are set
+     * 
+     * @param flags
+     * @return
+     */
+    public boolean hasFlags(int flags) {
+        return (mFlagBits & flags) == flags;
+    }
+
+    /**
+     * Returns true if the flag is set, e.g. "rw" or "context=..."
+     * 
+     * @param flag
+     * @return
+     */
+    public boolean hasFlag(String flag) {
+        int bit = getFlagBit(flag);
+        if (bit != 0) {
+            return hasFlags(bit);
+        }
+        for (String other : mOtherFlags) {
+            if (other.equals(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isReadOnly() {
+        return hasFlags(FLAG_RO);
+    }
+
+    /**
+     * Read only set of all flags, use hasFlag() to check single flags
+     * 
+     * @return
+     */
     public Set<String> getFlags() {
         return mFlags;
     }
@@ -55,4 +149,32 @@ public class Mount {
     public String toString() {
         return String.format("%s on %s type %s %s", mDevice, mMountPoint, mType, mFlags);
     }
+
+    /**
+     * Read only set view of the flag bits and the other flags
+     */
+    private class FlagSet extends AbstractSet<String> {
+
+        @Override
+        public boolean contains(Object flag) {
+            return flag instanceof String && hasFlag((String) flag);
+        }
+
+        @Override
+        public int size() {
+            return Integer.bitCount(mFlagBits) + mOtherFlags.length;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            List<String> flags = new ArrayList<String>(size());
+            for (int i = 0; i < FLAG_NAMES.length; i++) {
+                if ((mFlagBits & (1 << i)) != 0) {
+                    flags.add(FLAG_NAMES[i]);
+                }
+            }
+            Collections.addAll(flags, mOtherFlags);
+            return Collections.unmodifiableList(flags).iterator();
+        }
+    }
 }
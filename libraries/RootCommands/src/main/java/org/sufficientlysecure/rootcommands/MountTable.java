@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Snapshot of /proc/mounts. Mount points are kept in a trie of path components, so the mount a
+ * path belongs to is found by walking the components of the path once instead of scanning all
+ * mounts for every parent directory.
+ *
+ * getCached() reads the table once and keeps it for CACHE_TIME milliseconds. After remounts done by
+ * RootCommands only the entry of the remounted partition is read again, remounts done by others are
+ * only seen after the cache expired.
+ *
+ * The table is read on the given shell, or directly from Java if no shell is given. Java sees the
+ * mount namespace of the app, which differs from the one of su on some devices, so pass the shell
+ * that executes the commands depending on the table.
+ */
+public class MountTable {
+    public static final long CACHE_TIME = 30000;
+
+    private static final Object lock = new Object();
+    private static MountTable cached = null;
+
+    private static final String PROC_MOUNTS = "/proc/mounts";
+
+    private final List<Mount> mounts;
+    private final Node root = new Node();
+    private final long createdTime;
+
+    private static class Node {
+        // created on demand, most nodes are leaves
+        HashMap<String, Node> children = null;
+        // mount on exactly this path, null if there is none
+        Mount mount = null;
+    }
+
+    /**
+     * @param mounts
+     *            in the order of /proc/mounts, later mounts on the same path hide earlier ones
+     */
+    public MountTable(List<Mount> mounts) {
+        this(mounts, System.currentTimeMillis());
+    }
+
+    private MountTable(List<Mount> mounts, long createdTime) {
+        this.createdTime = createdTime;
+        this.mounts = Collections.unmodifiableList(new ArrayList<Mount>(mounts));
+        for (Mount mount : mounts) {
+            Node node = root;
+            for (String component : split(mount.getMountPoint().getPath())) {
+                if (node.children == null) {
+                    node.children = new HashMap<String, Node>();
+                }
+                Node child = node.children.get(component);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(component, child);
+                }
+                node = child;
+            }
+            node.mount = mount;
+        }
+    }
+
+    /**
+     * Parses the content of /proc/mounts
+     *
+     * @param content
+     * @return
+     */
+    public static MountTable parse(String content) {
+        ArrayList<Mount> mounts = new ArrayList<Mount>();
+        for (String line : content.split("\n")) {
+            Mount mount = parseLine(line);
+            if (mount != null) {
+                mounts.add(mount);
+            }
+        }
+        return new MountTable(mounts);
+    }
+
+    /**
+     * @return null if the line is not a valid entry
+     */
+    private static Mount parseLine(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length < 4) {
+            return null;
+        }
+
+        return new Mount(new File(fields[0]), // device
+                new File(fields[1]), // mountPoint
+                fields[2], // fstype
+                fields[3] // flags
+        );
+    }
+
+    /**
+     * Reads /proc/mounts from stdout of the given shell. Without a shell it is read directly from
+     * Java, if that is not possible (4.3) on a new root shell.
+     *
+     * @param shell
+     *            may be null
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static MountTable read(Shell shell) throws IOException, TimeoutException,
+            BrokenBusyboxException {
+        if (shell != null) {
+            return parse(new String(new Toolbox(shell).readSmallFile(PROC_MOUNTS)));
+        }
+
+        MountTable table = readFromJava();
+        if (table != null) {
+            return table;
+        }
+        Shell rootShell = Shell.startRootShell();
+        try {
+            return read(rootShell);
+        } finally {
+            rootShell.close();
+        }
+    }
+
+    /**
+     * @return null if /proc/mounts is not readable
+     */
+    private static MountTable readFromJava() {
+        File file = new File(PROC_MOUNTS);
+        if (!file.canRead()) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            ArrayList<Mount> mounts = new ArrayList<Mount>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Mount mount = parseLine(line);
+                if (mount != null) {
+                    mounts.add(mount);
+                }
+            }
+            return new MountTable(mounts);
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException while reading " + PROC_MOUNTS, e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(RootCommands.TAG, "IOException while closing", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached table, see getCached(Shell)
+     *
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static MountTable getCached() throws IOException, TimeoutException,
+            BrokenBusyboxException {
+        return getCached(null);
+    }
+
+    /**
+     * Returns the cached table, reading it with read(shell) if the cache is empty or expired.
+     * Concurrent callers wait for a single read.
+     *
+     * @param shell
+     *            may be null
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static MountTable getCached(Shell shell) throws IOException, TimeoutException,
+            BrokenBusyboxException {
+        synchronized (lock) {
+            if (cached == null || System.currentTimeMillis() - cached.createdTime > CACHE_TIME) {
+                cached = read(shell);
+                Log.d(RootCommands.TAG, "Read mount table with " + cached.mounts.size()
+                        + " mounts");
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * Reads only the entries of one mount point again, e.g. after remounting it, and replaces
+     * them in the cached table. The shell loops over /proc/mounts itself, so only matching lines
+     * are sent.
+     *
+     * @param shell
+     * @param mountPoint
+     *            example: /system
+     * @return the current mount on mountPoint, null if there is none
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static Mount refreshMount(Shell shell, String mountPoint) throws IOException,
+            TimeoutException, BrokenBusyboxException {
+        SimpleCommand readCommand = new SimpleCommand("while read -r d m t f r; do "
+                + "[ \"$m\" = \"" + mountPoint + "\" ] && echo \"$d $m $t $f\"; done < "
+                + PROC_MOUNTS + "; true");
+        shell.add(readCommand).waitForFinish();
+
+        ArrayList<Mount> fresh = new ArrayList<Mount>();
+        for (String line : readCommand.getOutput().split("\n")) {
+            Mount mount = parseLine(line);
+            if (mount != null) {
+                fresh.add(mount);
+            }
+        }
+
+        synchronized (lock) {
+            if (cached != null) {
+                cached = cached.replaceMounts(new File(mountPoint), fresh);
+            }
+        }
+        return fresh.isEmpty() ? null : fresh.get(fresh.size() - 1);
+    }
+
+    /**
+     * Returns a copy of this table with the entries of mountPoint replaced by fresh ones, keeping
+     * the creation time, as the other entries are not any newer
+     */
+    private MountTable replaceMounts(File mountPoint, List<Mount> fresh) {
+        ArrayList<Mount> replaced = new ArrayList<Mount>(mounts.size());
+        for (Mount mount : mounts) {
+            if (!mount.getMountPoint().equals(mountPoint)) {
+                replaced.add(mount);
+            }
+        }
+        replaced.addAll(fresh);
+        return new MountTable(replaced, createdTime);
+    }
+
+    /**
+     * Forgets the cached table, e.g. after mounts were changed by others
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            cached = null;
+        }
+    }
+
+    /**
+     * Returns the mount the path belongs to, the mount with the longest mount point that is a
+     * parent of path or path itself. Symlinks are not resolved.
+     *
+     * @param path
+     *            absolute path, example: /system/etc/hosts
+     * @return null if no mount contains the path
+     */
+    public Mount findMount(String path) {
+        Node node = root;
+        Mount found = root.mount;
+        for (String component : split(path)) {
+            if (node.children == null) {
+                break;
+            }
+            node = node.children.get(component);
+            if (node == null) {
+                break;
+            }
+            if (node.mount != null) {
+                found = node.mount;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * All mounts in the order of /proc/mounts
+     *
+     * @return
+     */
+    public List<Mount> getMounts() {
+        return mounts;
+    }
+
+    /**
+     * Time this snapshot was taken, in milliseconds like System.currentTimeMillis()
+     *
+     * @return
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * Splits a path into its components, ignoring empty components and "."
+     */
+    private static List<String> split(String path) {
+        ArrayList<String> components = new ArrayList<String>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start && !(end - start == 1 && path.charAt(start) == '.')) {
+                components.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return components;
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Snapshot of the output of toolbox ps, indexed by name, pid and uid. Lines are split into columns
+ * once while ps is running, lookups afterwards do not touch the lines again.
+ *
+ * getCached() shares one ps for all queries within the cache time, so checking many processes at
+ * once only runs ps once. Keep the cache time short, processes may have ended or been started in
+ * the meantime.
+ */
+public class ProcessTable {
+    public static final long DEFAULT_CACHE_TIME = 1000;
+
+    private static final Object lock = new Object();
+    private static ProcessTable cached = null;
+    private static long cacheTime = DEFAULT_CACHE_TIME;
+
+    // Android ids of system users, see android_filesystem_config.h
+    private static final String[] SYSTEM_USERS = { "system", "radio", "bluetooth", "graphics",
+            "input", "audio", "camera", "log", "compass", "mount", "wifi", "adb", "install",
+            "media", "dhcp", "sdcard_rw", "vpn", "keystore", "usb", "drm" };
+    private static final int FIRST_SYSTEM_UID = 1000;
+    private static final int SHELL_UID = 2000;
+    private static final int NOBODY_UID = 9999;
+    private static final int FIRST_APPLICATION_UID = 10000;
+    private static final int FIRST_ISOLATED_UID = 99000;
+    private static final int PER_USER_RANGE = 100000;
+
+    private static final List<Entry> NO_ENTRIES = Collections.emptyList();
+
+    private final List<Entry> entries;
+    private final HashMap<String, List<Entry>> byName = new HashMap<String, List<Entry>>();
+    private final HashMap<Integer, Entry> byPid = new HashMap<Integer, Entry>();
+    private final HashMap<Integer, List<Entry>> byUid = new HashMap<Integer, List<Entry>>();
+    private final long createdTime = System.currentTimeMillis();
+
+    /**
+     * A line of ps
+     */
+    public static class Entry {
+        private final String user;
+        private final int uid;
+        private final int pid;
+        private final int ppid;
+        private final String name;
+
+        Entry(String user, int uid, int pid, int ppid, String name) {
+            this.user = user;
+            this.uid = uid;
+            this.pid = pid;
+            this.ppid = ppid;
+            this.name = name;
+        }
+
+        /**
+         * @return example: u0_a45
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return uid derived from the user name, -1 if it is not known
+         */
+        public int getUid() {
+            return uid;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        public int getPpid() {
+            return ppid;
+        }
+
+        /**
+         * @return example: /data/data/org.adaway/files/blank_webserver
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return user + " " + pid + " " + ppid + " " + name;
+        }
+    }
+
+    /**
+     * This command class parses the lines of ps while they are read
+     */
+    private static class PsCommand extends Command {
+        private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        public PsCommand() {
+            super("ps");
+        }
+
+        public ArrayList<Entry> getEntries() {
+            return entries;
+        }
+
+        @Override
+        public void output(int id, String line) {
+            Entry entry = parseLine(line);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+    }
+
+    /**
+     * @param entries
+     *            in the order of ps
+     */
+    public ProcessTable(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        for (Entry entry : entries) {
+            byPid.put(entry.pid, entry);
+            addTo(byUid, entry.uid, entry);
+
+            addTo(byName, entry.name, entry);
+            int slash = entry.name.lastIndexOf('/');
+            if (slash >= 0 && slash < entry.name.length() - 1) {
+                addTo(byName, entry.name.substring(slash + 1), entry);
+            }
+        }
+    }
+
+    private static <K> void addTo(HashMap<K, List<Entry>> index, K key, Entry entry) {
+        List<Entry> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<Entry>(1);
+            index.put(key, list);
+        }
+        list.add(entry);
+    }
+
+    /**
+     * Parses the output of toolbox ps
+     *
+     * @param content
+     * @return
+     */
+    public static ProcessTable parse(String content) {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (String line : content.split("\n")) {
+            Entry entry = parseLine(line);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return new ProcessTable(entries);
+    }
+
+    /**
+     * Parses a line like
+     *
+     * <pre>
+     * root      24736 1     12140  584   ffffffff 40010d14 S /data/data/org.adaway/files/blank_webserver
+     * </pre>
+     *
+     * taking user, pid and ppid from the first columns and the name from the last one.
+     *
+     * @return null for the header or lines that are not valid
+     */
+    private static Entry parseLine(String line) {
+        ArrayList<String> columns = new ArrayList<String>(9);
+        int length = line.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && isSpace(line.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < length && !isSpace(line.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                columns.add(line.substring(start, end));
+            }
+            start = end;
+        }
+        if (columns.size() < 4) {
+            return null;
+        }
+
+        int pid = parseNumber(columns.get(1));
+        int ppid = parseNumber(columns.get(2));
+        if (pid < 0 || ppid < 0) {
+            // header
+            return null;
+        }
+        String user = columns.get(0);
+        return new Entry(user, getUidForUser(user), pid, ppid, columns.get(columns.size() - 1));
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * @return -1 if s is not a non-negative number
+     */
+    private static int parseNumber(String s) {
+        if (s.length() == 0 || s.length() > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Derives the uid from the user name shown by ps, e.g. root, system, u0_a45, app_45 or a
+     * number if the uid has no name
+     *
+     * @return -1 if the user is not known
+     */
+    static int getUidForUser(String user) {
+        int number = parseNumber(user);
+        if (number >= 0) {
+            return number;
+        }
+        if (user.equals("root")) {
+            return 0;
+        }
+        if (user.equals("shell")) {
+            return SHELL_UID;
+        }
+        if (user.equals("nobody")) {
+            return NOBODY_UID;
+        }
+        for (int i = 0; i < SYSTEM_USERS.length; i++) {
+            if (SYSTEM_USERS[i].equals(user)) {
+                return FIRST_SYSTEM_UID + i;
+            }
+        }
+
+        // app_45 before multi user support
+        if (user.startsWith("app_")) {
+            int app = parseNumber(user.substring(4));
+            return app < 0 ? -1 : FIRST_APPLICATION_UID + app;
+        }
+        // u0_a45 for apps and u0_i3 for isolated processes
+        int underscore = user.indexOf('_');
+        if (user.startsWith("u") && underscore > 1 && underscore + 2 < user.length()) {
+            int userId = parseNumber(user.substring(1, underscore));
+            int app = parseNumber(user.substring(underscore + 2));
+            if (userId < 0 || app < 0) {
+                return -1;
+            }
+            char kind = user.charAt(underscore + 1);
+            if (kind == 'a') {
+                return userId * PER_USER_RANGE + FIRST_APPLICATION_UID + app;
+            } else if (kind == 'i') {
+                return userId * PER_USER_RANGE + FIRST_ISOLATED_UID + app;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs ps on the given shell
+     *
+     * @param shell
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static ProcessTable read(Shell shell) throws IOException, TimeoutException,
+            BrokenBusyboxException {
+        PsCommand psCommand = new PsCommand();
+        shell.add(psCommand).waitForFinish();
+        return new ProcessTable(psCommand.getEntries());
+    }
+
+    /**
+     * Returns the cached table, reading it with read(shell) if the cache is empty or older than
+     * the cache time. Concurrent callers wait for a single ps.
+     *
+     * @param shell
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static ProcessTable getCached(Shell shell) throws IOException, TimeoutException,
+            BrokenBusyboxException {
+        synchronized (lock) {
+            if (cached == null || System.currentTimeMillis() - cached.createdTime > cacheTime) {
+                cached = read(shell);
+                Log.d(RootCommands.TAG, "Read process table with " + cached.entries.size()
+                        + " processes");
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * Forgets the cached table, called after killing processes
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            cached = null;
+        }
+    }
+
+    /**
+     * @param millis
+     *            how long getCached() returns the same table, 0 to run ps on every call
+     */
+    public static void setCacheTime(long millis) {
+        synchronized (lock) {
+            cacheTime = millis;
+        }
+    }
+
+    public static long getCacheTime() {
+        synchronized (lock) {
+            return cacheTime;
+        }
+    }
+
+    /**
+     * Processes with the given name, either the full name or the file name of a process started
+     * from a path, e.g. blank_webserver for /data/data/org.adaway/files/blank_webserver
+     *
+     * @param name
+     * @return empty list if none is running
+     */
+    public List<Entry> findByName(String name) {
+        List<Entry> found = byName.get(name);
+        return found == null ? NO_ENTRIES : Collections.unmodifiableList(found);
+    }
+
+    /**
+     * @param pid
+     * @return null if there is no process with this pid
+     */
+    public Entry findByPid(int pid) {
+        return byPid.get(pid);
+    }
+
+    /**
+     * @param uid
+     * @return empty list if no process runs as uid
+     */
+    public List<Entry> findByUid(int uid) {
+        List<Entry> found = byUid.get(uid);
+        return found == null ? NO_ENTRIES : Collections.unmodifiableList(found);
+    }
+
+    /**
+     * All processes in the order of ps
+     *
+     * @return
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Time this snapshot was taken, in milliseconds like System.currentTimeMillis()
+     *
+     * @return
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Lease keeping a partition mounted read/write, see Toolbox.openRemountSession(). Sessions are
+ * counted per mount point: the first one remounts a read only partition as read/write, closing the
+ * last one remounts it back to read only. Partitions that were already read/write are left alone.
+ * Remounting holds only a lock of the mount point, other partitions are not blocked meanwhile.
+ *
+ * With a grace period the partition stays read/write for that long after the last session was
+ * closed, so a session opened shortly after does not remount again. The shell of the session may
+ * be used by someone else by then, so the partition is restored on a root shell of its own.
+ */
+public class RemountSession implements Closeable {
+    // guards states, the session counts and the fields below, never held during shell I/O
+    private static final Object lock = new Object();
+    private static final HashMap<String, MountState> states = new HashMap<String, MountState>();
+    // started on first grace period
+    private static Timer restoreTimer = null;
+    // started by the first restore after a grace period, closed when none is pending anymore
+    private static Shell restoreShell = null;
+    private static int pendingRestores = 0;
+
+    private final String mountPoint;
+    private final MountState state;
+    private final Shell shell;
+    private final long gracePeriod;
+    private boolean closed = false;
+
+    /**
+     * Monitor of a mount point, held while remounting it
+     */
+    private static class MountState {
+        // guarded by lock, a state is removed from states only without sessions
+        int sessions = 0;
+        // true while the partition is read/write because of sessions
+        boolean remounted = false;
+        TimerTask pendingRestore = null;
+    }
+
+    private RemountSession(String mountPoint, MountState state, Shell shell, long gracePeriod) {
+        this.mountPoint = mountPoint;
+        this.state = state;
+        this.shell = shell;
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @param shell
+     *            root shell used to remount
+     * @param path
+     *            file path, its partition is remounted
+     * @param gracePeriod
+     *            milliseconds to wait after the last session was closed before remounting read
+     *            only
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    static RemountSession open(Shell shell, String path, long gracePeriod) throws IOException,
+            TimeoutException, BrokenBusyboxException {
+        Mount mount = MountTable.getCached(shell).findMount(path);
+        String mountPoint = (mount != null) ? mount.getMountPoint().getPath() : path;
+
+        MountState state;
+        synchronized (lock) {
+            state = states.get(mountPoint);
+            if (state == null) {
+                state = new MountState();
+                states.put(mountPoint, state);
+            }
+            // counted before remounting, so the state is kept while waiting for its monitor
+            state.sessions++;
+        }
+        RemountSession session = new RemountSession(mountPoint, state, shell, gracePeriod);
+
+        boolean opened = false;
+        try {
+            synchronized (state) {
+                if (state.pendingRestore != null) {
+                    if (state.pendingRestore.cancel()) {
+                        restoreFinished();
+                    }
+                    state.pendingRestore = null;
+                    Log.d(RootCommands.TAG, "Reusing read/write mount of " + mountPoint);
+                }
+
+                if (!state.remounted && mount != null) {
+                    // looked up again, a restore may have finished while waiting for the monitor
+                    mount = MountTable.getCached(shell).findMount(path);
+                }
+                if (!state.remounted && mount != null && mount.isReadOnly()) {
+                    state.remounted = new Remounter(shell).remount(mountPoint, "RW");
+                    if (!state.remounted) {
+                        Log.d(RootCommands.TAG, "Remounting " + mountPoint + " as rw failed!");
+                    }
+                }
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                session.close();
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Mount point kept read/write by this session
+     *
+     * @return
+     */
+    public String getMountPoint() {
+        return mountPoint;
+    }
+
+    /**
+     * @return true if the partition was remounted as read/write because of sessions, false if it
+     *         was read/write before or remounting failed
+     */
+    public boolean isRemounted() {
+        synchronized (state) {
+            return state.remounted;
+        }
+    }
+
+    /**
+     * Ends this session. Closing the last session of the partition remounts it as read only, after
+     * the grace period if one was given. Without grace period the shell of the session is used, so
+     * close the session before handing the shell on. Closing twice has no effect.
+     */
+    public void close() {
+        synchronized (state) {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+
+                state.sessions--;
+                if (state.sessions > 0) {
+                    return;
+                }
+                if (!state.remounted) {
+                    states.remove(mountPoint);
+                    return;
+                }
+            }
+
+            if (gracePeriod <= 0) {
+                restore(shell);
+                return;
+            }
+
+            synchronized (lock) {
+                if (restoreTimer == null) {
+                    restoreTimer = new Timer("RemountSession Restore", true);
+                }
+                pendingRestores++;
+            }
+            state.pendingRestore = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (state) {
+                            // a new session may have been opened while waiting for the monitor
+                            if (state.pendingRestore != this) {
+                                return;
+                            }
+                            state.pendingRestore = null;
+                            restore(getRestoreShell());
+                        }
+                    } finally {
+                        restoreFinished();
+                    }
+                }
+            };
+            restoreTimer.schedule(state.pendingRestore, gracePeriod);
+        }
+    }
+
+    /**
+     * Returns the root shell for restores after a grace period, only called on the timer thread
+     */
+    private static Shell getRestoreShell() {
+        Shell rootShell;
+        synchronized (lock) {
+            rootShell = restoreShell;
+        }
+        if (rootShell == null || rootShell.isClosed()) {
+            try {
+                rootShell = Shell.startRootShell();
+            } catch (Exception e) {
+                Log.e(RootCommands.TAG, "Exception while starting shell to remount as ro", e);
+                return null;
+            }
+            synchronized (lock) {
+                restoreShell = rootShell;
+            }
+        }
+        return rootShell;
+    }
+
+    /**
+     * Called when a scheduled restore ran or was cancelled, closes the restore shell after the
+     * last one
+     */
+    private static void restoreFinished() {
+        Shell idleShell = null;
+        synchronized (lock) {
+            pendingRestores--;
+            if (pendingRestores == 0) {
+                idleShell = restoreShell;
+                restoreShell = null;
+            }
+        }
+        if (idleShell != null) {
+            try {
+                idleShell.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "IOException while closing shell", e);
+            }
+        }
+    }
+
+    /**
+     * Remounts as read only, on a new root shell if the given shell was closed in the meantime.
+     * Called with the monitor of the state held.
+     */
+    private void restore(Shell remountShell) {
+        Shell rootShell = null;
+        try {
+            if (remountShell == null || remountShell.isClosed()) {
+                rootShell = Shell.startRootShell();
+                remountShell = rootShell;
+            }
+            if (!new Remounter(remountShell).remount(mountPoint, "RO")) {
+                Log.d(RootCommands.TAG, "Remounting " + mountPoint + " back as ro failed!");
+            }
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Exception while remounting " + mountPoint + " as ro", e);
+        } finally {
+            if (rootShell != null) {
+                try {
+                    rootShell.close();
+                } catch (IOException e) {
+                    Log.e(RootCommands.TAG, "IOException while closing shell", e);
+                }
+            }
+        }
+
+        state.remounted = false;
+        synchronized (lock) {
+            // sessions opened meanwhile wait for the monitor and remount again
+            if (state.sessions == 0) {
+                states.remove(mountPoint);
+            }
+        }
+    }
+
+}
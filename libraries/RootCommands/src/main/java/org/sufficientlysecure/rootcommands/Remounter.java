@@ -17,21 +17,65 @@
 
 package org.sufficientlysecure.rootcommands;
 
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.LineNumberReader;
 import java.util.ArrayList;
 import java.util.Locale;
 
-import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.command.Command;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 //no modifier, this means it is package-private. Only our internal classes can use this.
 class Remounter {
+    // tried in this order, the first one that worked is used alone afterwards
+    private static final String[] MOUNT_VARIANTS = new String[] { "busybox mount",
+            "toolbox mount", "mount", "/system/bin/toolbox mount" };
+    private static final String VARIANT_STATUS = "rc-mount-status";
+
+    private static final Object lock = new Object();
+    // index into MOUNT_VARIANTS, -1 if not known yet
+    private static int workingVariant = -1;
 
     private Shell shell;
 
+    /**
+     * This command class executes mount variants and gets the exit code of every variant
+     */
+    private static class RemountCommand extends Command {
+        private final int[] variants;
+        // -1 until a variant exited with 0
+        private int firstSuccess = -1;
+
+        public RemountCommand(int[] variants, String[] variantLines) {
+            super(variantLines);
+            this.variants = variants;
+        }
+
+        public int getFirstSuccess() {
+            return firstSuccess;
+        }
+
+        @Override
+        public void output(int id, String line) {
+            if (!line.startsWith(VARIANT_STATUS + " ")) {
+                Log.d(RootCommands.TAG, line);
+                return;
+            }
+            String[] fields = line.split(" ");
+            try {
+                int index = Integer.parseInt(fields[1]);
+                if (firstSuccess < 0 && fields[2].equals("0") && index >= 0
+                        && index < variants.length) {
+                    firstSuccess = variants[index];
+                }
+            } catch (NumberFormatException e) {
+                Log.e(RootCommands.TAG, "Invalid mount status: " + line);
+            }
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+    }
+
     public Remounter(Shell shell) {
         super();
         this.shell = shell;
@@ -43,8 +87,8 @@ class Remounter {
      * <p/>
      * For example, passing in the following string:
      * "/system/bin/some/directory/that/really/would/never/exist" will result in /system ultimately
-     * being remounted. However, keep in mind that the longer the path you supply, the more work
-     * this has to do, and the slower it will run.
+     * being remounted. The partition is looked up in the cached MountTable, read on the shell of
+     * this Remounter.
      * 
      * @param file
      *            file path
@@ -54,70 +98,52 @@ class Remounter {
      *         remounted as specified.
      */
     protected boolean remount(String file, String mountType) {
+        String mode = mountType.toLowerCase(Locale.US);
 
-        // if the path has a trailing slash get rid of it.
-        if (file.endsWith("/") && !file.equals("/")) {
-            file = file.substring(0, file.lastIndexOf("/"));
+        Mount mountPoint;
+        try {
+            mountPoint = MountTable.getCached(shell).findMount(file);
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Exception", e);
+            return false;
+        }
+        if (mountPoint == null) {
+            Log.d(RootCommands.TAG, "No mount point found for " + file);
+            return false;
         }
-        // Make sure that what we are trying to remount is in the mount list.
-        boolean foundMount = false;
-        while (!foundMount) {
-            try {
-                for (Mount mount : getMounts()) {
-                    Log.d(RootCommands.TAG, mount.getMountPoint().toString());
 
-                    if (file.equals(mount.getMountPoint().toString())) {
-                        foundMount = true;
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(RootCommands.TAG, "Exception", e);
-                return false;
+        String device = mountPoint.getDevice().getAbsolutePath();
+        String path = mountPoint.getMountPoint().getAbsolutePath();
+        Log.d(RootCommands.TAG, "Remounting " + path + " as " + mode);
+
+        if (!mountPoint.hasFlag(mode)) {
+            int variant;
+            synchronized (lock) {
+                variant = workingVariant;
             }
-            if (!foundMount) {
-                try {
-                    file = (new File(file).getParent()).toString();
-                } catch (Exception e) {
-                    Log.e(RootCommands.TAG, "Exception", e);
-                    return false;
+
+            if (variant >= 0) {
+                mountPoint = executeVariants(new int[] { variant }, mode, device, path);
+                if (mountPoint == null || !mountPoint.hasFlag(mode)) {
+                    Log.d(RootCommands.TAG, MOUNT_VARIANTS[variant]
+                            + " did not work, trying all variants");
+                    forgetVariant(variant);
+                    variant = -1;
                 }
             }
-        }
-        Mount mountPoint = findMountPointRecursive(file);
 
-        Log.d(RootCommands.TAG, "Remounting " + mountPoint.getMountPoint().getAbsolutePath()
-                + " as " + mountType.toLowerCase(Locale.US));
-        final boolean isMountMode = mountPoint.getFlags().contains(mountType.toLowerCase(Locale.US));
-
-        if (!isMountMode) {
-            // grab an instance of the internal class
-            try {
-                SimpleCommand command = new SimpleCommand("busybox mount -o remount,"
-                        + mountType.toLowerCase(Locale.US) + " " + mountPoint.getDevice().getAbsolutePath()
-                        + " " + mountPoint.getMountPoint().getAbsolutePath(),
-                        "toolbox mount -o remount," + mountType.toLowerCase(Locale.US) + " "
-                                + mountPoint.getDevice().getAbsolutePath() + " "
-                                + mountPoint.getMountPoint().getAbsolutePath(), "mount -o remount,"
-                                + mountType.toLowerCase(Locale.US) + " "
-                                + mountPoint.getDevice().getAbsolutePath() + " "
-                                + mountPoint.getMountPoint().getAbsolutePath(),
-                        "/system/bin/toolbox mount -o remount," + mountType.toLowerCase(Locale.US) + " "
-                                + mountPoint.getDevice().getAbsolutePath() + " "
-                                + mountPoint.getMountPoint().getAbsolutePath());
-
-                // execute on shell
-                shell.add(command).waitForFinish();
-
-            } catch (Exception e) {
+            if (variant < 0) {
+                int[] all = new int[MOUNT_VARIANTS.length];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i;
+                }
+                mountPoint = executeVariants(all, mode, device, path);
             }
-
-            mountPoint = findMountPointRecursive(file);
         }
 
         if (mountPoint != null) {
-            Log.d(RootCommands.TAG, mountPoint.getFlags() + " AND " + mountType.toLowerCase(Locale.US));
-            if (mountPoint.getFlags().contains(mountType.toLowerCase(Locale.US))) {
+            Log.d(RootCommands.TAG, mountPoint.getFlags() + " AND " + mode);
+            if (mountPoint.hasFlag(mode)) {
                 Log.d(RootCommands.TAG, mountPoint.getFlags().toString());
                 return true;
             } else {
@@ -129,23 +155,57 @@ class Remounter {
         return false;
     }
 
-    private Mount findMountPointRecursive(String file) {
+    /**
+     * Executes the given mount variants on the shell, all of them even if one succeeded, and reads
+     * the mount again. The first variant that exited with 0 is remembered if the mount is now in
+     * the requested mode.
+     *
+     * @return the mount after remounting, null if it could not be read
+     */
+    private Mount executeVariants(int[] variants, String mode, String device, String path) {
+        String[] variantLines = new String[variants.length];
+        for (int i = 0; i < variants.length; i++) {
+            variantLines[i] = MOUNT_VARIANTS[variants[i]] + " -o remount," + mode + " " + device
+                    + " " + path + " 2>&1; echo " + VARIANT_STATUS + " " + i + " $?";
+        }
+
+        RemountCommand command = new RemountCommand(variants, variantLines);
         try {
-            ArrayList<Mount> mounts = getMounts();
-            for (File path = new File(file); path != null;) {
-                for (Mount mount : mounts) {
-                    if (mount.getMountPoint().equals(path)) {
-                        return mount;
-                    }
-                }
-            }
-            return null;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            shell.add(command).waitForFinish();
         } catch (Exception e) {
             Log.e(RootCommands.TAG, "Exception", e);
         }
-        return null;
+
+        // the cached table does not know about our remount
+        Mount mountPoint;
+        try {
+            mountPoint = MountTable.refreshMount(shell, path);
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Exception", e);
+            return null;
+        }
+
+        int success = command.getFirstSuccess();
+        if (success >= 0 && mountPoint != null && mountPoint.hasFlag(mode)) {
+            synchronized (lock) {
+                if (workingVariant != success) {
+                    Log.d(RootCommands.TAG, "Remounting works with " + MOUNT_VARIANTS[success]);
+                    workingVariant = success;
+                }
+            }
+        }
+        return mountPoint;
+    }
+
+    /**
+     * Forgets the working variant, unless another thread already learned a different one
+     */
+    private static void forgetVariant(int variant) {
+        synchronized (lock) {
+            if (workingVariant == variant) {
+                workingVariant = -1;
+            }
+        }
     }
 
     /**
@@ -159,33 +219,6 @@ class Remounter {
      *             if we cannot return the mount points.
      */
     protected static ArrayList<Mount> getMounts() throws Exception {
-
-        final String tempFile = "/data/local/RootToolsMounts";
-
-        // copy /proc/mounts to tempfile. Directly reading it does not work on 4.3
-        Shell shell = Shell.startRootShell();
-        Toolbox tb = new Toolbox(shell);
-        tb.copyFile("/proc/mounts", tempFile, false, false);
-        tb.setFilePermissions(tempFile, "777");
-        shell.close();
-
-        LineNumberReader lnr = null;
-        lnr = new LineNumberReader(new FileReader(tempFile));
-        String line;
-        ArrayList<Mount> mounts = new ArrayList<Mount>();
-        while ((line = lnr.readLine()) != null) {
-
-            Log.d(RootCommands.TAG, line);
-
-            String[] fields = line.split(" ");
-            mounts.add(new Mount(new File(fields[0]), // device
-                    new File(fields[1]), // mountPoint
-                    fields[2], // fstype
-                    fields[3] // flags
-            ));
-        }
-        lnr.close();
-
-        return mounts;
+        return new ArrayList<Mount>(MountTable.getCached().getMounts());
     }
 }
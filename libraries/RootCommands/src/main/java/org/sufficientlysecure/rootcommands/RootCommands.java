@@ -16,35 +16,147 @@
 
 package org.sufficientlysecure.rootcommands;
 
+import java.util.concurrent.ExecutionException;
+
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
 
 public class RootCommands {
     public static boolean DEBUG = false;
     public static int DEFAULT_TIMEOUT = 10000;
+    // milliseconds the result of a root access check is reused by rootAccessGiven()
+    public static long ROOT_ACCESS_CACHE_TIME = 60000;
 
     public static final String TAG = "RootCommands";
 
+    private static final Object rootAccessLock = new Object();
+    private static ShellPool rootAccessPool = null;
+    // last result of a root access check and System.nanoTime() of it, null if never checked
+    private static Boolean rootAccessVerdict = null;
+    private static long rootAccessCheckTime = 0;
+    // check in progress, callers join it instead of starting another one
+    private static ResultFuture<Boolean> rootAccessCheck = null;
+
     /**
      * General method to check if user has su binary and accepts root access for this program!
      * 
+     * The result is cached for ROOT_ACCESS_CACHE_TIME. After that the last result is still
+     * returned while a new check runs in the background, only the very first call waits for the
+     * check. Use checkRootAccess() to wait for a fresh result.
+     * 
      * @return true if everything worked
      */
     public static boolean rootAccessGiven() {
-        boolean rootAccess = false;
+        ResultFuture<Boolean> check;
+        synchronized (rootAccessLock) {
+            if (rootAccessVerdict != null) {
+                long age = (System.nanoTime() - rootAccessCheckTime) / 1000000L;
+                if (age >= ROOT_ACCESS_CACHE_TIME) {
+                    startRootAccessCheck();
+                }
+                return rootAccessVerdict;
+            }
+            check = startRootAccessCheck();
+        }
 
-        try {
-            Shell rootShell = Shell.startRootShell();
+        while (true) {
+            try {
+                return check.get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException in rootAccessGiven()", e);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Problem while checking for root access!", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Checks for root access in the background, ignoring the cached result. If a check is
+     * already running, its result is returned instead of starting another one.
+     * 
+     * @return future completed with true if root access is given
+     */
+    public static ResultFuture<Boolean> checkRootAccess() {
+        synchronized (rootAccessLock) {
+            return startRootAccessCheck();
+        }
+    }
+
+    /**
+     * Checks for root access on a shell of this pool instead of starting a new root shell for
+     * every check. A pooled shell keeps root access even if access was revoked after it was
+     * started, so this only verifies that the pool still provides working root shells.
+     * 
+     * @param pool
+     *            pool of root shells, null to start a new shell for every check
+     */
+    public static void setRootAccessShellPool(ShellPool pool) {
+        if (pool != null && !pool.isRootShellPool()) {
+            throw new IllegalArgumentException("pool does not provide root shells");
+        }
+        synchronized (rootAccessLock) {
+            rootAccessPool = pool;
+        }
+    }
+
+    /**
+     * Forgets the cached result, the next call to rootAccessGiven() checks again
+     */
+    public static void invalidateRootAccess() {
+        synchronized (rootAccessLock) {
+            rootAccessVerdict = null;
+        }
+    }
+
+    /**
+     * Starts a check unless one is in flight, so only one su probe runs at a time. Must be called
+     * while holding rootAccessLock.
+     */
+    private static ResultFuture<Boolean> startRootAccessCheck() {
+        if (rootAccessCheck != null) {
+            return rootAccessCheck;
+        }
+
+        final ResultFuture<Boolean> check = new ResultFuture<Boolean>();
+        final ShellPool pool = rootAccessPool;
+        rootAccessCheck = check;
+
+        // on the threads doing the su handshake of asynchronously started shells anyway
+        Shell.executeBlocking(new Runnable() {
+            public void run() {
+                boolean rootAccess = runRootAccessCheck(pool);
+                synchronized (rootAccessLock) {
+                    rootAccessVerdict = rootAccess;
+                    rootAccessCheckTime = System.nanoTime();
+                    rootAccessCheck = null;
+                }
+                check.set(rootAccess);
+            }
+        });
+        return check;
+    }
 
-            Toolbox tb = new Toolbox(rootShell);
-            if (tb.isRootAccessGiven()) {
-                rootAccess = true;
+    private static boolean runRootAccessCheck(ShellPool pool) {
+        try {
+            if (pool != null) {
+                Shell shell = pool.acquire();
+                try {
+                    return new Toolbox(shell).isRootAccessGiven();
+                } finally {
+                    pool.release(shell);
+                }
             }
 
-            rootShell.close();
+            Shell rootShell = Shell.startRootShell();
+            try {
+                return new Toolbox(rootShell).isRootAccessGiven();
+            } finally {
+                rootShell.close();
+            }
         } catch (Exception e) {
             Log.e(TAG, "Problem while checking for root access!", e);
+            return false;
         }
-
-        return rootAccess;
     }
 }
@@ -17,28 +17,92 @@
 
 package org.sufficientlysecure.rootcommands;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandResult;
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.OutputFramer;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+import org.sufficientlysecure.rootcommands.util.ShellEnvironment;
+import org.sufficientlysecure.rootcommands.util.TimingWheel;
 import org.sufficientlysecure.rootcommands.util.Utils;
 
 public class Shell implements Closeable {
     private final Process shellProcess;
-    private final BufferedReader stdOutErr;
+    private final OutputFramer stdOutErr;
     private final DataOutputStream outputStream;
-    private final List<Command> commands = new ArrayList<Command>();
-    private boolean close = false;
+    // stderr of commands with separate error output, only read once such a command was added
+    private final OutputFramer stdErr;
+    private final AtomicBoolean errorReading = new AtomicBoolean(false);
+    private final ErrorListener errorListener = new ErrorListener();
+    // written commands with separate error output, waiting for their stderr token
+    private final ConcurrentLinkedQueue<Command> errorCommands = new ConcurrentLinkedQueue<Command>();
+    // commands added to the shell, but not yet written to it. Lock-free, so threads adding
+    // commands do not contend with each other or with the writer. Cancelled commands stay in the
+    // queue until the writer skips them, see Command.dequeue().
+    private final ConcurrentLinkedQueue<Command> pendingCommands = new ConcurrentLinkedQueue<Command>();
+    // number of pending commands not dequeued yet
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    // commands written to the shell, waiting for their token, in order of execution
+    private final ConcurrentLinkedQueue<Command> runningCommands = new ConcurrentLinkedQueue<Command>();
+    private final AtomicInteger nextCommandId = new AtomicInteger(0);
+    private volatile boolean close = false;
+
+    // runs reading and writing, a write is only scheduled if none is scheduled yet
+    private final ShellExecutor executor;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final OutputListener listener = new OutputListener();
+    // set while a stream reader did not take the bytes offered to it, event loop mode only
+    private volatile boolean streamWaiting = false;
+    private final Runnable resumeReading = new Runnable() {
+        public void run() {
+            streamWaiting = false;
+            executor.resumeReading(Shell.this);
+        }
+    };
+    // only used by the writer
+    private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream();
+    private final List<Command> batch = new ArrayList<Command>();
+    private boolean exitWritten = false;
+
+    // used to start a control shell of the same kind
+    private final String shellPath;
+    private final ArrayList<String> customEnv;
+    private final String baseDirectory;
+    private final CommandKiller commandKiller = new CommandKiller(this);
+
+    // nanoseconds needed to start the process and until it answered the handshake
+    private final long spawnTime;
+    private final long handshakeTime;
 
-    private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
     private static final String token = "F*D^W@#FGF";
+    private static final int MAX_RUNNING_COMMANDS = 256;
+    // well below the pipe buffer, so writing a batch does not block while the shell waits for input
+    private static final int MAX_BATCH_BYTES = 16384;
+
+    private static volatile ShellExecutor defaultExecutor = ShellExecutor.threadPool(ShellExecutor
+            .daemonThreadFactory("Shell I/O"));
+
+    // executes the blocking handshake of shells started asynchronously
+    private static final Executor startExecutor = Executors.newCachedThreadPool(ShellExecutor
+            .daemonThreadFactory("Shell Start"));
+
+    // deadlines of all commands of all shells
+    private static final TimingWheel timer = new TimingWheel(50, 512, "Shell Timer");
 
     /**
      * Start root shell
@@ -57,9 +121,9 @@ public class Shell implements Closeable {
         if (customEnv == null) {
             customEnv = new ArrayList<String>();
         }
-        customEnv.add("LD_LIBRARY_PATH=" + LD_LIBRARY_PATH);
+        customEnv.add("LD_LIBRARY_PATH=" + ShellEnvironment.getLdLibraryPath());
 
-        Shell shell = new Shell(Utils.getSuPath(), customEnv, baseDirectory);
+        Shell shell = new Shell(ShellEnvironment.getSuPath(), customEnv, baseDirectory, defaultExecutor);
 
         return shell;
     }
@@ -74,6 +138,80 @@ public class Shell implements Closeable {
         return startRootShell(null, null);
     }
 
+    /**
+     * Starts a root shell on a background thread. The su handshake can take seconds, e.g. while
+     * the user is asked to grant root access, so use this to not block the calling thread. Shells
+     * started this way are started concurrently.
+     * 
+     * @param customEnv
+     * @param baseDirectory
+     * @return future completed with the started shell, or failed with IOException or
+     *         RootAccessDeniedException
+     */
+    public static ResultFuture<Shell> startRootShellAsync(final ArrayList<String> customEnv,
+            final String baseDirectory) {
+        return startAsync(new Callable<Shell>() {
+            public Shell call() throws IOException {
+                return startRootShell(customEnv, baseDirectory);
+            }
+        });
+    }
+
+    /**
+     * Start root shell asynchronously without custom environment and base directory
+     * 
+     * @return
+     */
+    public static ResultFuture<Shell> startRootShellAsync() {
+        return startRootShellAsync(null, null);
+    }
+
+    /**
+     * Start default sh shell on a background thread, see startRootShellAsync()
+     * 
+     * @return
+     */
+    public static ResultFuture<Shell> startShellAsync() {
+        return startAsync(new Callable<Shell>() {
+            public Shell call() throws IOException {
+                return startShell();
+            }
+        });
+    }
+
+    /**
+     * Executes a blocking task like a su handshake on the threads starting shells asynchronously
+     * 
+     * @param task
+     */
+    static void executeBlocking(Runnable task) {
+        startExecutor.execute(task);
+    }
+
+    private static ResultFuture<Shell> startAsync(final Callable<Shell> start) {
+        final ResultFuture<Shell> future = new ResultFuture<Shell>();
+        startExecutor.execute(new Runnable() {
+            public void run() {
+                Shell shell;
+                try {
+                    shell = start.call();
+                } catch (Exception e) {
+                    future.setException(e);
+                    return;
+                }
+                // nobody takes the shell if the future was cancelled in the meantime
+                if (!future.set(shell)) {
+                    try {
+                        shell.close();
+                    } catch (IOException e) {
+                        Log.e(RootCommands.TAG, "IOException while closing shell", e);
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
     /**
      * Start default sh shell
      * 
@@ -85,7 +223,7 @@ public class Shell implements Closeable {
     public static Shell startShell(ArrayList<String> customEnv, String baseDirectory)
             throws IOException {
         Log.d(RootCommands.TAG, "Starting Shell!");
-        Shell shell = new Shell("sh", customEnv, baseDirectory);
+        Shell shell = new Shell("sh", customEnv, baseDirectory, defaultExecutor);
         return shell;
     }
 
@@ -111,7 +249,7 @@ public class Shell implements Closeable {
     public static Shell startCustomShell(String shellPath, ArrayList<String> customEnv,
             String baseDirectory) throws IOException {
         Log.d(RootCommands.TAG, "Starting Custom Shell!");
-        Shell shell = new Shell(shellPath, customEnv, baseDirectory);
+        Shell shell = new Shell(shellPath, customEnv, baseDirectory, defaultExecutor);
 
         return shell;
     }
@@ -127,15 +265,40 @@ public class Shell implements Closeable {
         return startCustomShell(shellPath, null, null);
     }
 
-    private Shell(String shell, ArrayList<String> customEnv, String baseDirectory)
-            throws IOException, RootAccessDeniedException {
+    /**
+     * Sets the executor running input and output of shells started afterwards. The default is
+     * ShellExecutor.threadPool(), where every open shell keeps a pooled thread blocked on its
+     * output. ShellExecutor.eventLoop() drives all shells on a single thread instead.
+     * 
+     * @param executor
+     */
+    public static void setDefaultExecutor(ShellExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        defaultExecutor = executor;
+    }
+
+    public static ShellExecutor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    private Shell(String shell, ArrayList<String> customEnv, String baseDirectory,
+            ShellExecutor executor) throws IOException, RootAccessDeniedException {
         Log.d(RootCommands.TAG, "Starting shell: " + shell);
 
+        this.shellPath = shell;
+        this.customEnv = customEnv;
+        this.baseDirectory = baseDirectory;
+
         // start shell process!
+        long start = System.nanoTime();
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
+        spawnTime = System.nanoTime() - start;
 
         // StdErr is redirected to StdOut, defined in Command.getCommand()
-        stdOutErr = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
+        stdOutErr = new OutputFramer(shellProcess.getInputStream(), token);
+        stdErr = new OutputFramer(shellProcess.getErrorStream(), token);
         outputStream = new DataOutputStream(shellProcess.getOutputStream());
 
         outputStream.write("echo Started\n".getBytes());
@@ -154,197 +317,760 @@ public class Shell implements Closeable {
             destroyShellProcess();
             throw new IOException("Unable to start shell, unexpected output \"" + line + "\"");
         }
+        handshakeTime = System.nanoTime() - start - spawnTime;
+        Log.d(RootCommands.TAG, "Shell started, spawn: " + getSpawnTime() + " ms, handshake: "
+                + getHandshakeTime() + " ms");
 
-        new Thread(inputRunnable, "Shell Input").start();
-        new Thread(outputRunnable, "Shell Output").start();
+        this.executor = executor;
+        executor.register(this);
     }
 
-    private Runnable inputRunnable = new Runnable() {
-        public void run() {
-            try {
-                writeCommands();
-            } catch (IOException e) {
-                Log.e(RootCommands.TAG, "IO Exception", e);
-            }
-        }
-    };
-
-    private Runnable outputRunnable = new Runnable() {
-        public void run() {
-            try {
-                readOutput();
-            } catch (IOException e) {
-                Log.e(RootCommands.TAG, "IOException", e);
-            } catch (InterruptedException e) {
-                Log.e(RootCommands.TAG, "InterruptedException", e);
-            }
-        }
-    };
-
     /**
      * Destroy shell process considering that the process could already be terminated
      */
     private void destroyShellProcess() {
+        // Only call destroy() if the process is still running;
+        // Calling it for a terminated process will not crash, but
+        // (starting with at least ICS/4.0) spam the log with INFO
+        // messages ala "Failed to destroy process" and "kill
+        // failed: ESRCH (No such process)".
+        if (isProcessRunning()) {
+            shellProcess.destroy();
+        }
+
+        Log.d(RootCommands.TAG, "Shell destroyed");
+    }
+
+    private boolean isProcessRunning() {
         try {
             // Yes, this really is the way to check if the process is
             // still running.
             shellProcess.exitValue();
+            return false;
         } catch (IllegalThreadStateException e) {
-            // Only call destroy() if the process is still running;
-            // Calling it for a terminated process will not crash, but
-            // (starting with at least ICS/4.0) spam the log with INFO
-            // messages ala "Failed to destroy process" and "kill
-            // failed: ESRCH (No such process)".
-            shellProcess.destroy();
+            return true;
         }
+    }
 
-        Log.d(RootCommands.TAG, "Shell destroyed");
+    /**
+     * Writes commands as long as the shell can take them, executed by the ShellExecutor after
+     * wakeWriter() scheduled it.
+     */
+    void runWriter() {
+        while (true) {
+            try {
+                writeCommands();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "IO Exception", e);
+            }
+
+            writeScheduled.set(false);
+            // commands added before resetting the flag did not schedule another write
+            if (!hasWriteWork() || !writeScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
     }
 
     /**
      * Writes queued commands one after another into the opened shell. After an execution a token is
-     * written to seperate command output on read
+     * written to seperate command output on read. Commands are written in batches of up to
+     * MAX_RUNNING_COMMANDS with a single write and flush. The next batch is written when the shell
+     * finished the previous one, so commands queued in the meantime are written together and can
+     * still be cancelled until then.
      * 
      * @throws IOException
      */
     private void writeCommands() throws IOException {
-        try {
-            int commandIndex = 0;
-            while (true) {
-                DataOutputStream out;
-                synchronized (commands) {
-                    while (!close && commandIndex >= commands.size()) {
-                        commands.wait();
+        if (exitWritten) {
+            return;
+        }
+
+        if (canWriteBatch()) {
+            Command next;
+            while (batch.size() < MAX_RUNNING_COMMANDS && batchBuffer.size() < MAX_BATCH_BYTES
+                    && (next = pendingCommands.poll()) != null) {
+                // skip commands cancelled in the meantime
+                if (next.dequeue()) {
+                    if (next.isSeparateErrorOutput()) {
+                        errorCommands.add(next);
                     }
-                    out = this.outputStream;
+                    // add to running before decrementing, see OutputListener.nextCommand()
+                    runningCommands.add(next);
+                    pendingCount.decrementAndGet();
+                    batch.add(next);
+                    writeCommand(next, batchBuffer);
                 }
-                if (commandIndex < commands.size()) {
-                    Command next = commands.get(commandIndex);
-                    next.writeCommand(out);
-                    String line = "\necho " + token + " " + commandIndex + " $?\n";
-                    out.write(line.getBytes());
-                    out.flush();
-                    commandIndex++;
-                } else if (close) {
-                    out.write("\nexit 0\n".getBytes());
-                    out.flush();
-                    Log.d(RootCommands.TAG, "Closing shell");
-                    shellProcess.waitFor();
-                    out.close();
-                    return;
-                } else {
-                    Thread.sleep(50);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            try {
+                batchBuffer.writeTo(outputStream);
+                outputStream.flush();
+            } catch (IOException e) {
+                // shell process is gone, the output thread may already have given up on the
+                // running commands
+                for (Command next : batch) {
+                    next.terminated("Unexpected Termination!");
                 }
+                throw e;
+            } finally {
+                batchBuffer.reset();
+                batch.clear();
             }
-        } catch (InterruptedException e) {
-            Log.e(RootCommands.TAG, "interrupted while writing command", e);
+        } else if (close && pendingCommands.isEmpty()) {
+            exitWritten = true;
+            Log.d(RootCommands.TAG, "Closing shell");
+            outputStream.write("\nexit 0\n".getBytes());
+            outputStream.flush();
+            outputStream.close();
         }
     }
 
     /**
-     * Reads output line by line, seperated by token written after every command
-     * 
-     * @throws IOException
-     * @throws InterruptedException
+     * Writes a command followed by its token. Isolated commands are executed as a background job in
+     * a subshell, the pid of the subshell is written before waiting for it.
+     */
+    private void writeCommand(Command command, ByteArrayOutputStream out) throws IOException {
+        String line;
+        if (command.getStreamLengthCommand() != null) {
+            writeStreamingCommand(command, out);
+            line = "\necho " + token + " " + command.getId() + " $?\n";
+        } else if (command.isIsolated()) {
+            out.write("(\n".getBytes());
+            command.writeCommand(out);
+            line = "\n) &\necho " + token + OutputFramer.PROCESS_ID_MARKER + " " + command.getId()
+                    + " $!\nwait $!\necho " + token + " " + command.getId() + " $?\n";
+        } else {
+            command.writeCommand(out);
+            line = "\necho " + token + " " + command.getId() + " $?\n";
+        }
+        if (command.isSeparateErrorOutput()) {
+            line += "echo " + token + " " + command.getId() + " 0 >&2\n";
+        }
+        out.write(line.getBytes());
+    }
+
+    /**
+     * Writes a streaming command, which is only executed if the length command printed a number.
+     * Its stdout is piped through dd, which counts the bytes on the way. The shell pads missing
+     * bytes with zeros, so the stream always has the announced length and the output afterwards
+     * can not end up inside of it, and reports the count in the stream end line. The exit code of
+     * the command is passed on to the token. The command runs in a subshell, isolated ones report
+     * its pid, killing it leaves dd and the padding to the shell.
      */
-    private void readOutput() throws IOException, InterruptedException {
+    private void writeStreamingCommand(Command command, ByteArrayOutputStream out)
+            throws IOException {
+        String id = " " + command.getId() + " ";
+        // echo without quotes strips the whitespace some versions of wc print
+        out.write(("rc_length=$(echo $(" + command.getStreamLengthCommand() + "))\n"
+                + "case \"$rc_length\" in\n''|*[!0-9]*) false ;;\n"
+                // fd 3 and 4 are stdout and stderr of the shell, 5 collects the exit code and the
+                // statistics of dd
+                + "*) { rc_stats=$( { { (\n").getBytes());
+        if (command.isIsolated()) {
+            out.write(("sh -c 'echo " + token + OutputFramer.PROCESS_ID_MARKER + id
+                    + "$PPID' >&3\n").getBytes());
+        }
+        out.write(("echo " + token + OutputFramer.STREAM_MARKER + id + "$rc_length >&3\n{\n")
+                .getBytes());
+        command.writeCommand(out);
+        out.write(("\n} 2>&4 3>&- 4>&- 5>&-\n); echo \"rc_exit $?\" >&5; } "
+                + "| dd bs=65536 >&3; } 2>&1 5>&1 ); } 3>&1 4>&2\n"
+                + "case \"$rc_stats\" in\n*'rc_exit '*) rc_exit=${rc_stats#*rc_exit }; "
+                + "rc_exit=${rc_exit%%[!0-9]*} ;;\n*) rc_exit=1 ;;\nesac\n"
+                + "case \"$rc_stats\" in\n*' bytes'*) rc_count=${rc_stats%% bytes*}; "
+                + "rc_count=${rc_count##*[!0-9]} ;;\n*) rc_count=$rc_length ;;\nesac\n"
+                // arithmetic of some shells has 32 bits, only needed for short output
+                + "if [ \"$rc_count\" != \"$rc_length\" ]; then rc_pad=$((rc_length - rc_count))\n"
+                // count=0 copies everything with the dd of toolbox
+                + "if [ $rc_pad -ge 65536 ]; then "
+                + "dd if=/dev/zero bs=65536 count=$((rc_pad / 65536)) 2>/dev/null; fi\n"
+                + "if [ $((rc_pad % 65536)) -gt 0 ]; then "
+                + "dd if=/dev/zero bs=$((rc_pad % 65536)) count=1 2>/dev/null; fi\nfi\n"
+                + "echo " + token + OutputFramer.STREAM_END_MARKER + id + "$rc_count\n"
+                + "(exit ${rc_exit:-1}) ;;\nesac").getBytes());
+    }
+
+    private boolean canWriteBatch() {
+        return !pendingCommands.isEmpty() && runningCommands.isEmpty();
+    }
+
+    private boolean hasWriteWork() {
+        return !exitWritten && (canWriteBatch() || (close && pendingCommands.isEmpty()));
+    }
+
+    /**
+     * Schedules the writer if there is something to write and it is not scheduled yet
+     */
+    private void wakeWriter() {
+        if (hasWriteWork() && writeScheduled.compareAndSet(false, true)) {
+            executor.scheduleWrite(this);
+        }
+    }
+
+    /**
+     * Called after adding commands. While a batch is running the writer is woken up by the output
+     * thread after the batch anyway, so adding does not schedule it for nothing.
+     */
+    private void wakeWriterForPending() {
+        if (runningCommands.isEmpty()) {
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Passes output of the shell to the command that is currently executed
+     */
+    private class OutputListener implements OutputFramer.Listener {
+        // current command
         Command command = null;
+        // set on close after last command
+        boolean done = false;
+        // set by readOutput(), the reading thread may then wait for stream readers
+        boolean blocking = false;
 
-        // index of current command
-        int commandIndex = 0;
-        while (true) {
-            String lineStdOut = stdOutErr.readLine();
+        public void onLine(byte[] buffer, int offset, int length) {
+            if (nextCommand()) {
+                command.processOutput(buffer, offset, length);
+            }
+        }
 
-            // terminate on EOF
-            if (lineStdOut == null)
-                break;
+        public boolean onToken(int id, int exitCode) {
+            if (!nextCommand()) {
+                return true;
+            }
+            if (id != command.getId()) {
+                return false;
+            }
+
+            // release command before notifying waiting callers, wake up writer after a batch
+            runningCommands.poll();
+            if (runningCommands.isEmpty()) {
+                wakeWriter();
+            }
+            if (command.isSeparateErrorOutput()) {
+                command.outputFinished(exitCode);
+            } else {
+                command.setExitCode(exitCode);
+            }
 
+            // go to next command
+            command = null;
+            return true;
+        }
+
+        public void onProcessId(int id, int pid) {
+            if (nextCommand() && id == command.getId()) {
+                command.setProcessId(pid);
+            }
+        }
+
+        public boolean onStreamStart(int id, long length) {
+            if (nextCommand() && id == command.getId()
+                    && command.getStreamLengthCommand() != null) {
+                command.streamStarted(length);
+                return true;
+            }
+            return false;
+        }
+
+        public int onStreamData(byte[] buffer, int offset, int length) {
             if (command == null) {
+                return length;
+            }
+            if (blocking) {
+                return command.processStreamData(buffer, offset, length, null);
+            }
+            // set before, resume can run before processStreamData() returned
+            streamWaiting = true;
+            int taken = command.processStreamData(buffer, offset, length, resumeReading);
+            if (taken == length) {
+                streamWaiting = false;
+            }
+            return taken;
+        }
+
+        public void onStreamEnd(int id, long written) {
+            if (nextCommand() && id == command.getId()) {
+                command.streamEnded(written);
+            }
+        }
 
-                // break on close after last command
-                if (commandIndex >= commands.size()) {
-                    if (close)
-                        break;
-                    continue;
+        /**
+         * @return false if there is no command to pass output to
+         */
+        private boolean nextCommand() {
+            if (command == null) {
+                // read pending count first, the writer decrements it after adding to running
+                boolean nonePending = pendingCount.get() == 0;
+                command = runningCommands.peek();
+                if (command == null && close && nonePending) {
+                    // break on close after last command
+                    done = true;
                 }
+            }
+            return command != null;
+        }
+    }
 
-                // get current command
-                command = commands.get(commandIndex);
+    /**
+     * Passes stderr of the shell to the oldest command with separate error output that did not
+     * write its stderr token yet
+     */
+    private class ErrorListener implements OutputFramer.Listener {
+
+        public void onLine(byte[] buffer, int offset, int length) {
+            Command command = errorCommands.peek();
+            if (command != null) {
+                command.processErrorOutput(buffer, offset, length);
+            } else {
+                Log.d(RootCommands.TAG, "Shell error output: " + new String(buffer, offset, length));
             }
+        }
 
-            int pos = lineStdOut.indexOf(token);
-            if (pos > 0) {
-                command.processOutput(lineStdOut.substring(0, pos));
+        public boolean onToken(int id, int exitCode) {
+            Command command = errorCommands.peek();
+            if (command == null || id != command.getId()) {
+                return false;
             }
-            if (pos >= 0) {
-                lineStdOut = lineStdOut.substring(pos);
-                String fields[] = lineStdOut.split(" ");
-                int id = Integer.parseInt(fields[1]);
-                if (id == commandIndex) {
-                    command.setExitCode(Integer.parseInt(fields[2]));
-
-                    // go to next command
-                    commandIndex++;
-                    command = null;
-                    continue;
+            errorCommands.poll();
+            command.errorOutputFinished();
+            return true;
+        }
+
+        public void onProcessId(int id, int pid) {
+        }
+
+        public boolean onStreamStart(int id, long length) {
+            return false;
+        }
+
+        public int onStreamData(byte[] buffer, int offset, int length) {
+            return length;
+        }
+
+        public void onStreamEnd(int id, long written) {
+        }
+    }
+
+    /**
+     * Starts reading stderr when the first command with separate error output is added
+     */
+    private void startErrorReading() {
+        if (errorReading.compareAndSet(false, true)) {
+            executor.registerErrorOutput(this);
+        }
+    }
+
+    /**
+     * Reads stderr until the shell terminated, executed by the ShellExecutor
+     */
+    void readErrorOutput() {
+        try {
+            while (stdErr.readFrame(errorListener)) {
+            }
+            stdErr.close();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException", e);
+        }
+        finishErrorOutput();
+    }
+
+    /**
+     * Commands waiting for their stderr token finish with the exit code read from stdout
+     */
+    private void finishErrorOutput() {
+        Command next;
+        while ((next = errorCommands.poll()) != null) {
+            next.errorOutputFinished();
+        }
+    }
+
+    /**
+     * Reads output line by line, seperated by token written after every command. A command is
+     * removed from the shell as soon as its token has been read. Blocks until the shell terminated,
+     * executed by the ShellExecutor.
+     */
+    void readOutput() {
+        listener.blocking = true;
+        try {
+            while (!listener.done) {
+                // terminate on EOF
+                if (!stdOutErr.readFrame(listener))
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException", e);
+        }
+        finishReading(true);
+    }
+
+    /**
+     * Reads the output that is available without blocking, executed by event loop ShellExecutors
+     * 
+     * @return number of bytes read, -1 after the shell terminated
+     */
+    int readAvailableOutput() {
+        int read;
+        try {
+            if (streamWaiting) {
+                // stdout is not read until the stream reader took the bytes offered to it
+                read = 0;
+            } else {
+                read = listener.done ? -1 : stdOutErr.readAvailable(listener);
+            }
+            // end of stream can not be detected without blocking, check if the process exited
+            // and read once more for output written right before
+            if (read == 0 && !streamWaiting && !isProcessRunning()) {
+                read = stdOutErr.readAvailable(listener);
+                if (read == 0) {
+                    read = -1;
                 }
             }
-            command.processOutput(lineStdOut);
+            if (errorReading.get()) {
+                int errorRead = stdErr.readAvailable(errorListener);
+                if (read >= 0 && errorRead > 0) {
+                    read += errorRead;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException", e);
+            read = -1;
+        }
+
+        if (read < 0) {
+            finishReading(false);
         }
+        return read;
+    }
+
+    /**
+     * Called after the last output was read, fails all commands that did not finish
+     * 
+     * @param waitForProcess
+     *            wait for the shell process to exit, otherwise it is destroyed if still running
+     */
+    void finishReading(boolean waitForProcess) {
         Log.d(RootCommands.TAG, "Read all output");
-        shellProcess.waitFor();
-        stdOutErr.close();
+        try {
+            if (waitForProcess) {
+                shellProcess.waitFor();
+            }
+            stdOutErr.close();
+            outputStream.close();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException", e);
+        } catch (InterruptedException e) {
+            Log.e(RootCommands.TAG, "InterruptedException", e);
+        }
         destroyShellProcess();
 
-        while (commandIndex < commands.size()) {
-            if (command == null) {
-                command = commands.get(commandIndex);
+        // shell process is gone, no further commands can be executed
+        close = true;
+        List<Command> unfinished = new ArrayList<Command>();
+        Command next;
+        while ((next = runningCommands.poll()) != null) {
+            unfinished.add(next);
+        }
+        while ((next = pendingCommands.poll()) != null) {
+            if (next.dequeue()) {
+                pendingCount.decrementAndGet();
+                unfinished.add(next);
+            }
+        }
+
+        for (Command unfinishedCommand : unfinished) {
+            unfinishedCommand.terminated("Unexpected Termination!");
+        }
+        finishErrorOutput();
+        if (!errorReading.get() || !waitForProcess) {
+            try {
+                stdErr.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "IOException", e);
             }
-            command.terminated("Unexpected Termination!");
-            commandIndex++;
-            command = null;
         }
     }
 
     /**
-     * Add command to shell queue
+     * Add command to shell queue. Its timeout starts now, so time spent waiting behind earlier
+     * commands counts against it.
      * 
      * @param command
      * @return
      * @throws IOException
      */
     public Command add(Command command) throws IOException {
+        return add(command, false);
+    }
+
+    /**
+     * Add command to shell queue without waiting for it. The returned future is completed on the
+     * shell output thread after the command's afterExecution has been called there. Use this
+     * instead of add() and waitForFinish() to have many commands queued without blocking a thread
+     * for each of them.
+     * 
+     * @param command
+     * @return
+     * @throws IOException
+     */
+    public ResultFuture<CommandResult> submit(Command command) throws IOException {
+        return add(command, true).getResult();
+    }
+
+    /**
+     * Add several commands to shell queue at once. They are written to the shell together, so a
+     * batch of small commands only costs one write to the shell.
+     * 
+     * @param commands
+     * @throws IOException
+     */
+    public void addAll(Collection<? extends Command> commands) throws IOException {
+        addAll(commands, false);
+    }
+
+    /**
+     * Asynchronous version of addAll(), see submit()
+     * 
+     * @param commands
+     * @return futures in the same order as the commands
+     * @throws IOException
+     */
+    public List<ResultFuture<CommandResult>> submitAll(Collection<? extends Command> commands)
+            throws IOException {
+        addAll(commands, true);
+
+        List<ResultFuture<CommandResult>> results = new ArrayList<ResultFuture<CommandResult>>(
+                commands.size());
+        for (Command command : commands) {
+            results.add(command.getResult());
+        }
+        return results;
+    }
+
+    private void addAll(Collection<? extends Command> newCommands, boolean asynchronous)
+            throws IOException {
         if (close)
             throw new IOException("Unable to add commands to a closed shell");
-        synchronized (commands) {
-            commands.add(command);
-            // set shell on the command object, to know where the command is running on
-            command.addedToShell(this, (commands.size() - 1));
-            commands.notifyAll();
+        for (Command command : newCommands) {
+            enqueue(command, asynchronous);
         }
+        wakeWriterForPending();
+        for (Command command : newCommands) {
+            checkNotClosed(command);
+        }
+    }
+
+    private Command add(Command command, boolean asynchronous) throws IOException {
+        if (close)
+            throw new IOException("Unable to add commands to a closed shell");
+        enqueue(command, asynchronous);
+        wakeWriterForPending();
+        checkNotClosed(command);
 
         return command;
     }
 
+    private void enqueue(Command command, boolean asynchronous) {
+        if (command.isSeparateErrorOutput()) {
+            startErrorReading();
+        }
+        pendingCount.incrementAndGet();
+        // set shell on the command object, to know where the command is running on
+        command.addedToShell(this, nextCommandId.getAndIncrement(), asynchronous);
+        scheduleTimeout(command);
+        pendingCommands.add(command);
+    }
+
+    /**
+     * The shell may have been closed while adding the command, withdraw it if it was not picked up
+     * by the writer anymore
+     */
+    private void checkNotClosed(Command command) throws IOException {
+        if (close && command.dequeue()) {
+            pendingCount.decrementAndGet();
+            command.terminated("Shell closed");
+            throw new IOException("Unable to add commands to a closed shell");
+        }
+    }
+
+    private void scheduleTimeout(final Command command) {
+        command.setDeadline(timer.schedule(new Runnable() {
+            public void run() {
+                handleTimeout(command);
+            }
+        }, command.getTimeout()));
+    }
+
+    /**
+     * Called on the timer thread when a command did not finish in time. Commands that were not
+     * written yet are simply removed, isolated commands are killed, otherwise the shell is closed.
+     */
+    private void handleTimeout(final Command command) {
+        if (command.isFinished()) {
+            return;
+        }
+        command.setTimedOut();
+
+        if (command.dequeue()) {
+            pendingCount.decrementAndGet();
+            Log.d(RootCommands.TAG, "Command " + command.getId() + " timed out in queue");
+            command.setExitCode(-1);
+            return;
+        }
+
+        if (!command.isIsolated()) {
+            command.terminate("Timeout");
+            return;
+        }
+
+        // killing uses the control shell, do not block the timer thread
+        executor.execute(new Runnable() {
+            public void run() {
+                if (!kill(command)) {
+                    command.terminate("Timeout");
+                    return;
+                }
+
+                // the shell outputs the token of the killed command, otherwise give up
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        if (!command.isFinished()) {
+                            command.terminate("Timeout");
+                        }
+                    }
+                }, command.getTimeout());
+            }
+        });
+    }
+
     /**
      * Close shell
      * 
      * @throws IOException
      */
     public void close() throws IOException {
-        synchronized (commands) {
-            this.close = true;
-            commands.notifyAll();
+        this.close = true;
+        wakeWriter();
+        commandKiller.close();
+    }
+
+    /**
+     * Cancels a command. Commands that were not written to the shell yet are removed from the queue,
+     * running isolated commands are killed. A running command that is not isolated is never
+     * stopped: there is no process to kill apart from the shell, so it runs to its end and false
+     * is returned. The same applies to an isolated command whose pid was not read yet. Use
+     * Command.setIsolated() for commands that may have to be stopped.
+     * 
+     * @param command
+     * @return true if the command was cancelled, false if it finished or keeps running
+     */
+    public boolean cancel(final Command command) {
+        if (command.isFinished()) {
+            return false;
+        }
+
+        if (command.dequeue()) {
+            pendingCount.decrementAndGet();
+            Log.d(RootCommands.TAG, "Command " + command.getId() + " cancelled in queue");
+            command.cancelled();
+            return true;
+        }
+
+        if (!command.isIsolated() || command.getProcessId() <= 0) {
+            return false;
+        }
+
+        // caller gave up, output and exit code of the killed command are discarded
+        command.cancelled();
+        if (!kill(command)) {
+            Log.e(RootCommands.TAG, "Command " + command.getId() + " could not be killed");
+        }
+        return true;
+    }
+
+    /**
+     * Kills the processes of a running isolated command. The shell itself keeps running and
+     * continues with the next command after the killed one.
+     * 
+     * @param command
+     * @return false if the command is not isolated, not running or could not be killed
+     */
+    public boolean kill(Command command) {
+        int pid = command.getProcessId();
+        if (!command.isIsolated() || pid <= 0) {
+            return false;
+        }
+        if (!runningCommands.contains(command)) {
+            return false;
         }
+
+        Log.d(RootCommands.TAG, "Killing command " + command.getId() + " with pid " + pid);
+        return commandKiller.kill(pid);
+    }
+
+    /**
+     * Starts another shell of the same kind, used to kill isolated commands of this shell
+     * 
+     * @return
+     * @throws IOException
+     */
+    Shell startControlShell() throws IOException {
+        Log.d(RootCommands.TAG, "Starting control shell");
+        return new Shell(shellPath, customEnv, baseDirectory, executor);
+    }
+
+    /**
+     * Time needed to start the shell process
+     * 
+     * @return milliseconds
+     */
+    public long getSpawnTime() {
+        return spawnTime / 1000000L;
+    }
+
+    /**
+     * Time from starting the shell process until it answered the first echo. For root shells this
+     * includes waiting for su to grant root access, which can not be told apart from the first
+     * echo, as the shell only reads its input after su granted access.
+     * 
+     * @return milliseconds
+     */
+    public long getHandshakeTime() {
+        return handshakeTime / 1000000L;
+    }
+
+    /**
+     * Returns true while output is expected: written commands did not finish yet, or the shell was
+     * closed and did not terminate yet. Event loop executors only poll shells expecting output. A
+     * shell waiting for a stream reader is woken up by resumeReading() instead.
+     * 
+     * @return
+     */
+    boolean isAwaitingOutput() {
+        return !streamWaiting
+                && (close || !runningCommands.isEmpty() || !errorCommands.isEmpty());
+    }
+
+    /**
+     * Returns true if the shell was closed or the shell process terminated
+     * 
+     * @return
+     */
+    public boolean isClosed() {
+        return close;
     }
 
     /**
-     * Returns number of queued commands
+     * Returns number of commands that are queued or running, finished commands are not counted.
+     * While commands are added or written concurrently this is only an estimate.
      * 
      * @return
      */
     public int getCommandsSize() {
-        return commands.size();
+        return pendingCount.get() + runningCommands.size();
     }
 
-}
\ No newline at end of file
+}
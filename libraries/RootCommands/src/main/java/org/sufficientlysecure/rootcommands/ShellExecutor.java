@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Runs the input and output handling of shells. Commands are written by short tasks scheduled when
+ * there is something to write, output is either read by a blocking task per open shell or polled
+ * by an event loop driving any number of shells on a single thread.
+ *
+ * Set the executor used for new shells with Shell.setDefaultExecutor().
+ */
+public abstract class ShellExecutor {
+
+    /**
+     * Starts reading the output of a shell, called once after the shell was started
+     */
+    abstract void register(Shell shell);
+
+    /**
+     * Starts reading stderr of a shell, called when the first command with separate error output
+     * was added
+     */
+    abstract void registerErrorOutput(Shell shell);
+
+    /**
+     * Executes Shell.runWriter(), called when the shell has commands to write
+     */
+    abstract void scheduleWrite(Shell shell);
+
+    /**
+     * Polls a shell again after a stream reader took the bytes offered to it, only used by
+     * executors reading with Shell.readAvailableOutput()
+     */
+    abstract void resumeReading(Shell shell);
+
+    /**
+     * Executes a task that may block, e.g. killing a command on the control shell, without
+     * blocking the threads reading the output of shells
+     */
+    abstract void execute(Runnable task);
+
+    /**
+     * Reads the output of every shell on a thread of a cached pool and writes commands on the same
+     * pool. Threads are reused after a shell was closed and end after being idle for a minute.
+     *
+     * @param threadFactory
+     * @return
+     */
+    public static ShellExecutor threadPool(ThreadFactory threadFactory) {
+        return executor(Executors.newCachedThreadPool(threadFactory));
+    }
+
+    /**
+     * Like threadPool(), using the given executor. Reading blocks one task per open shell, so the
+     * executor must not limit the number of concurrent tasks below the number of open shells.
+     *
+     * @param executor
+     * @return
+     */
+    public static ShellExecutor executor(Executor executor) {
+        return new BlockingExecutor(executor);
+    }
+
+    /**
+     * Drives all shells on a single thread created by threadFactory. Output is polled while
+     * commands are running, the loop sleeps between 1 and 16 ms while they have no output, so
+     * single commands can take a few milliseconds longer than with threadPool(). While no command
+     * is running the thread is parked until the next one is written, a shell terminating in the
+     * meantime is noticed then. The thread ends while no shell is open.
+     *
+     * @param threadFactory
+     * @return
+     */
+    public static ShellExecutor eventLoop(ThreadFactory threadFactory) {
+        return new EventLoop(threadFactory);
+    }
+
+    /**
+     * Creates daemon threads named prefix and a sequence number
+     *
+     * @param prefix
+     * @return
+     */
+    public static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static class BlockingExecutor extends ShellExecutor {
+        private final Executor executor;
+
+        public BlockingExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        void register(final Shell shell) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    shell.readOutput();
+                }
+            });
+        }
+
+        @Override
+        void registerErrorOutput(final Shell shell) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    shell.readErrorOutput();
+                }
+            });
+        }
+
+        @Override
+        void scheduleWrite(final Shell shell) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    shell.runWriter();
+                }
+            });
+        }
+
+        @Override
+        void resumeReading(Shell shell) {
+            // the reading thread waits for stream readers itself
+        }
+
+        @Override
+        void execute(Runnable task) {
+            executor.execute(task);
+        }
+    }
+
+    private static class EventLoop extends ShellExecutor implements Runnable {
+        private static final long MIN_POLL_INTERVAL = 1000000L;
+        private static final long MAX_POLL_INTERVAL = 16000000L;
+
+        private final ThreadFactory threadFactory;
+        private final ConcurrentLinkedQueue<Shell> registered = new ConcurrentLinkedQueue<Shell>();
+        private final ConcurrentLinkedQueue<Shell> writes = new ConcurrentLinkedQueue<Shell>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private volatile Thread thread = null;
+        // for blocking tasks, the loop thread must never block
+        private ExecutorService blockingTasks = null;
+
+        // only used by the loop thread
+        private final List<Shell> shells = new ArrayList<Shell>();
+
+        public EventLoop(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+        }
+
+        @Override
+        void register(Shell shell) {
+            registered.add(shell);
+            wakeUp();
+        }
+
+        @Override
+        void registerErrorOutput(Shell shell) {
+            // stderr is polled together with stdout by Shell.readAvailableOutput()
+        }
+
+        @Override
+        void scheduleWrite(Shell shell) {
+            writes.add(shell);
+            wakeUp();
+        }
+
+        @Override
+        void resumeReading(Shell shell) {
+            wakeUp();
+        }
+
+        @Override
+        void execute(Runnable task) {
+            ExecutorService executor;
+            synchronized (this) {
+                if (blockingTasks == null) {
+                    // threads end after being idle for a minute
+                    blockingTasks = Executors.newCachedThreadPool(threadFactory);
+                }
+                executor = blockingTasks;
+            }
+            executor.execute(task);
+        }
+
+        private void wakeUp() {
+            if (running.compareAndSet(false, true)) {
+                thread = threadFactory.newThread(this);
+                thread.start();
+            } else {
+                Thread current = thread;
+                if (current != null) {
+                    LockSupport.unpark(current);
+                }
+            }
+        }
+
+        public void run() {
+            long pollInterval = MIN_POLL_INTERVAL;
+            while (true) {
+                boolean active = false;
+                boolean awaitingOutput = false;
+
+                Shell shell;
+                while ((shell = registered.poll()) != null) {
+                    shells.add(shell);
+                }
+                while ((shell = writes.poll()) != null) {
+                    shell.runWriter();
+                    active = true;
+                }
+
+                Iterator<Shell> iterator = shells.iterator();
+                while (iterator.hasNext()) {
+                    shell = iterator.next();
+                    int read;
+                    try {
+                        read = shell.readAvailableOutput();
+                    } catch (RuntimeException e) {
+                        // do not let one shell break all others
+                        Log.e(RootCommands.TAG, "Exception while reading shell output", e);
+                        shell.finishReading(false);
+                        read = -1;
+                    }
+                    if (read < 0) {
+                        iterator.remove();
+                    } else {
+                        if (read > 0) {
+                            active = true;
+                        }
+                        if (shell.isAwaitingOutput()) {
+                            awaitingOutput = true;
+                        }
+                    }
+                }
+
+                if (shells.isEmpty() && registered.isEmpty() && writes.isEmpty()) {
+                    // end the thread, unless a shell was registered in the meantime
+                    running.set(false);
+                    if (registered.isEmpty() && writes.isEmpty()
+                            || !running.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+
+                if (active) {
+                    pollInterval = MIN_POLL_INTERVAL;
+                } else if (!awaitingOutput) {
+                    // nothing to poll, wakeUp() unparks when a command is written or a shell is
+                    // registered, also if that happened since the checks above
+                    LockSupport.park(this);
+                    pollInterval = MIN_POLL_INTERVAL;
+                } else {
+                    LockSupport.parkNanos(this, pollInterval);
+                    pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
+import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+
+/**
+ * Keeps a number of started shells around and leases them to callers, so that the su handshake is
+ * only paid once per shell and concurrent callers do not queue up behind the commands of a single
+ * shell.
+ *
+ * <pre>
+ * Shell shell = pool.acquire();
+ * try {
+ *     new Toolbox(shell).fileExists(&quot;/system/etc/hosts&quot;);
+ * } finally {
+ *     pool.release(shell);
+ * }
+ * </pre>
+ */
+public class ShellPool implements Closeable {
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static final String HEALTH_CHECK_TOKEN = "ShellPoolAlive";
+    private static final int HEALTH_CHECK_TIMEOUT = 2000;
+
+    private final boolean rootShells;
+    private final int coreSize;
+    private final int maxSize;
+    private final long idleTimeout;
+
+    // most recently released shells are at the head
+    private final LinkedList<IdleShell> idleShells = new LinkedList<IdleShell>();
+    private final Set<Shell> leasedShells = new HashSet<Shell>();
+    private int startingShells = 0;
+    private boolean closed = false;
+
+    // null without idle timeout
+    private final Timer reaper;
+
+    private static class IdleShell {
+        final Shell shell;
+        final long idleSince;
+
+        IdleShell(Shell shell) {
+            this.shell = shell;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Pool of root shells
+     *
+     * @param coreSize
+     *            number of shells that are kept open even if they are idle
+     * @param maxSize
+     *            maximum number of shells open at the same time
+     * @return
+     */
+    public static ShellPool rootShellPool(int coreSize, int maxSize) {
+        return new ShellPool(true, coreSize, maxSize, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Pool of default sh shells
+     *
+     * @param coreSize
+     *            number of shells that are kept open even if they are idle
+     * @param maxSize
+     *            maximum number of shells open at the same time
+     * @return
+     */
+    public static ShellPool shellPool(int coreSize, int maxSize) {
+        return new ShellPool(false, coreSize, maxSize, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param rootShells
+     *            true to start shells with Shell.startRootShell(), false for Shell.startShell()
+     * @param coreSize
+     *            number of shells that are kept open even if they are idle
+     * @param maxSize
+     *            maximum number of shells open at the same time
+     * @param idleTimeout
+     *            milliseconds after which shells above coreSize are closed when not leased, 0 to
+     *            close them only on reapIdle()
+     */
+    public ShellPool(boolean rootShells, int coreSize, int maxSize, long idleTimeout) {
+        if (maxSize < 1 || coreSize < 0 || coreSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: core " + coreSize + ", max "
+                    + maxSize);
+        }
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+        }
+        this.rootShells = rootShells;
+        this.coreSize = coreSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+
+        if (idleTimeout > 0) {
+            reaper = new Timer("ShellPool Reaper", true);
+            reaper.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    reapIdle();
+                }
+            }, idleTimeout, idleTimeout);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * Starts shells until coreSize shells are open. The shells are started concurrently, so this
+     * takes about as long as a single su handshake. Normally called once on a background thread,
+     * so that later calls to acquire() do not have to wait for the su handshake.
+     *
+     * @throws IOException
+     * @throws RootAccessDeniedException
+     *             if one of the shells could not be started, the others are kept
+     */
+    public void prestart() throws IOException, RootAccessDeniedException {
+        int missing;
+        synchronized (this) {
+            missing = coreSize - getSizeLocked();
+            if (closed || missing <= 0) {
+                return;
+            }
+            startingShells += missing;
+        }
+
+        List<ResultFuture<Shell>> started = new ArrayList<ResultFuture<Shell>>(missing);
+        for (int i = 0; i < missing; i++) {
+            started.add(rootShells ? Shell.startRootShellAsync() : Shell.startShellAsync());
+        }
+
+        IOException failure = null;
+        for (ResultFuture<Shell> future : started) {
+            try {
+                releaseStarted(waitForStart(future));
+            } catch (IOException e) {
+                synchronized (this) {
+                    startingShells--;
+                    notifyAll();
+                }
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for a shell started by prestart(). The start is not abandoned on interrupt, as the
+     * shell is counted as starting, but the interrupt is passed on afterwards.
+     */
+    private static Shell waitForStart(ResultFuture<Shell> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Unable to start shell: " + e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lease a shell using RootCommands.DEFAULT_TIMEOUT
+     *
+     * @return
+     * @throws IOException
+     * @throws RootAccessDeniedException
+     * @throws TimeoutException
+     */
+    public Shell acquire() throws IOException, RootAccessDeniedException, TimeoutException {
+        return acquire(RootCommands.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Lease a shell. An idle shell is reused if it passes the health check, otherwise a new shell
+     * is started as long as maxSize is not reached. If all shells are leased, this waits until one
+     * is released. Every leased shell has to be given back using release().
+     *
+     * @param timeout
+     *            milliseconds to wait for a shell to be released
+     * @return
+     * @throws IOException
+     *             InterruptedIOException if the thread was interrupted while waiting, its interrupt
+     *             flag is set again
+     * @throws RootAccessDeniedException
+     * @throws TimeoutException
+     */
+    public Shell acquire(long timeout) throws IOException, RootAccessDeniedException,
+            TimeoutException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            Shell candidate = null;
+            synchronized (this) {
+                while (!closed && idleShells.isEmpty() && getSizeLocked() >= maxSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("No shell was released in time.");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a shell");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Unable to acquire shells from a closed pool");
+                }
+
+                if (!idleShells.isEmpty()) {
+                    candidate = idleShells.removeFirst().shell;
+                    leasedShells.add(candidate);
+                } else {
+                    startingShells++;
+                }
+            }
+
+            if (candidate == null) {
+                Shell shell = startShellForSlot();
+                synchronized (this) {
+                    startingShells--;
+                    leasedShells.add(shell);
+                }
+                return shell;
+            }
+
+            if (isHealthy(candidate)) {
+                return candidate;
+            }
+
+            Log.d(RootCommands.TAG, "Discarding pooled shell that failed the health check");
+            discard(candidate);
+        }
+    }
+
+    /**
+     * Give a leased shell back to the pool. Closed shells are dropped from the pool.
+     *
+     * @param shell
+     */
+    public void release(Shell shell) {
+        boolean closeShell;
+        synchronized (this) {
+            if (!leasedShells.remove(shell)) {
+                throw new IllegalArgumentException("Shell was not leased from this pool");
+            }
+            closeShell = closed || shell.isClosed();
+            if (!closeShell) {
+                idleShells.addFirst(new IdleShell(shell));
+            }
+            notifyAll();
+        }
+
+        if (closeShell) {
+            closeQuietly(shell);
+        }
+    }
+
+    /**
+     * Closes shells above coreSize that have been idle for longer than idleTimeout. This is done
+     * periodically by the pool itself, unless idleTimeout is 0.
+     *
+     * @return number of closed shells
+     */
+    public int reapIdle() {
+        LinkedList<Shell> reaped = new LinkedList<Shell>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            // oldest idle shells are at the tail
+            ListIterator<IdleShell> it = idleShells.listIterator(idleShells.size());
+            while (it.hasPrevious() && getSizeLocked() > coreSize) {
+                IdleShell idle = it.previous();
+                if (now - idle.idleSince < idleTimeout) {
+                    break;
+                }
+                it.remove();
+                reaped.add(idle.shell);
+            }
+        }
+
+        for (Shell shell : reaped) {
+            closeQuietly(shell);
+        }
+        if (!reaped.isEmpty()) {
+            Log.d(RootCommands.TAG, "Reaped " + reaped.size() + " idle shells");
+        }
+        return reaped.size();
+    }
+
+    /**
+     * Closes all idle shells and stops the pool. Leased shells are closed when they are released.
+     */
+    public void close() {
+        LinkedList<IdleShell> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new LinkedList<IdleShell>(idleShells);
+            idleShells.clear();
+            notifyAll();
+        }
+        if (reaper != null) {
+            reaper.cancel();
+        }
+
+        for (IdleShell idle : toClose) {
+            closeQuietly(idle.shell);
+        }
+    }
+
+    /**
+     * Returns true if this pool starts root shells
+     *
+     * @return
+     */
+    public boolean isRootShellPool() {
+        return rootShells;
+    }
+
+    /**
+     * Returns number of open shells, leased and idle
+     *
+     * @return
+     */
+    public synchronized int getSize() {
+        return getSizeLocked();
+    }
+
+    /**
+     * Returns number of idle shells
+     *
+     * @return
+     */
+    public synchronized int getIdleCount() {
+        return idleShells.size();
+    }
+
+    private int getSizeLocked() {
+        return idleShells.size() + leasedShells.size() + startingShells;
+    }
+
+    /**
+     * Starts a shell for a slot already reserved by incrementing startingShells. The reservation is
+     * given back if starting fails.
+     */
+    private Shell startShellForSlot() throws IOException, RootAccessDeniedException {
+        try {
+            if (rootShells) {
+                return Shell.startRootShell();
+            } else {
+                return Shell.startShell();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                startingShells--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void releaseStarted(Shell shell) {
+        synchronized (this) {
+            startingShells--;
+            if (!closed) {
+                idleShells.addFirst(new IdleShell(shell));
+                notifyAll();
+                return;
+            }
+        }
+        closeQuietly(shell);
+    }
+
+    private void discard(Shell shell) {
+        synchronized (this) {
+            leasedShells.remove(shell);
+            notifyAll();
+        }
+        closeQuietly(shell);
+    }
+
+    /**
+     * Cheap check if the shell still executes commands
+     */
+    private boolean isHealthy(Shell shell) {
+        if (shell.isClosed()) {
+            return false;
+        }
+        try {
+            SimpleCommand echo = new SimpleCommand(HEALTH_CHECK_TIMEOUT, "echo "
+                    + HEALTH_CHECK_TOKEN);
+            shell.add(echo).waitForFinish();
+            return echo.getOutput().contains(HEALTH_CHECK_TOKEN);
+        } catch (Exception e) {
+            Log.d(RootCommands.TAG, "Health check failed", e);
+            return false;
+        }
+    }
+
+    private void closeQuietly(Shell shell) {
+        try {
+            shell.close();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException while closing pooled shell", e);
+        }
+    }
+
+}
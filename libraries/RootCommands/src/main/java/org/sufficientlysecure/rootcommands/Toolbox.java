@@ -17,19 +17,31 @@
 
 package org.sufficientlysecure.rootcommands;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.sufficientlysecure.rootcommands.command.ExecutableCommand;
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandResult;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.command.StreamingCommand;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
 
 import android.os.StatFs;
 import android.os.SystemClock;
@@ -46,6 +58,28 @@ import android.os.SystemClock;
 public class Toolbox {
     private Shell shell;
 
+    public static final int DEFAULT_READ_CHUNK_SIZE = 1024 * 1024;
+    public static final int LARGE_COPY_BLOCK_SIZE = 1024 * 1024;
+    public static final int WRITE_CHUNK_SIZE = 8192;
+    // chunks written to the shell before waiting for the oldest one
+    private static final int WRITE_CHUNKS_IN_FLIGHT = 4;
+    private static final String WRITE_SAFE_CHARACTERS = "abcdefghijklmnopqrstuvwxyz"
+            + "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 _.,:/=+";
+
+    // print command and prefix of its octal escapes, probed on the first writeFile()
+    private String printCommand = null;
+    private String octalPrefix = null;
+
+    /**
+     * Transforms results of commands to true if their exit code is 0
+     */
+    private static final ResultFuture.Transformer<CommandResult, Boolean> EXIT_CODE_SUCCESS =
+            new ResultFuture.Transformer<CommandResult, Boolean>() {
+                public Boolean transform(CommandResult result) {
+                    return result.getExitCode() == 0;
+                }
+            };
+
     /**
      * All methods in this class are working with Androids toolbox. Toolbox is similar to busybox,
      * but normally shipped on every Android OS.
@@ -80,64 +114,75 @@ public class Toolbox {
     }
 
     /**
-     * This command class gets all pids to a given process name
+     * This method can be used to kill a running process. Processes are looked up by their full
+     * name or the file name of their path in a ProcessTable read right before killing, never in
+     * the cached one, as a pid that ended since then may already belong to another process.
+     * 
+     * (commands: ps, kill)
+     * 
+     * @param processName
+     *            name of process to kill
+     * @return <code>true</code> if process was found and killed successfully
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
      */
-    private class PsCommand extends Command {
-        private String processName;
-        private ArrayList<String> pids;
-        private String psRegex;
-        private Pattern psPattern;
+    public boolean killAll(String processName) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        Log.d(RootCommands.TAG, "Killing process " + processName);
 
-        public PsCommand(String processName) {
-            super("ps");
-            this.processName = processName;
-            pids = new ArrayList<String>();
+        List<ProcessTable.Entry> processes = ProcessTable.read(shell).findByName(processName);
 
-            /**
-             * regex to get pid out of ps line, example:
-             * 
-             * <pre>
-             *  root    24736    1   12140  584   ffffffff 40010d14 S /data/data/org.adaway/files/blank_webserver
-             * ^\\S \\s ([0-9]+)                          .*                                      processName    $
-             * </pre>
-             */
-            psRegex = "^\\S+\\s+([0-9]+).*" + Pattern.quote(processName) + "$";
-            psPattern = Pattern.compile(psRegex);
-        }
+        // kill processes
+        if (!processes.isEmpty()) {
+            // example: kill -9 1234 1222 5343
+            StringBuilder pids = new StringBuilder();
+            for (ProcessTable.Entry process : processes) {
+                pids.append(' ').append(process.getPid());
+            }
+            SimpleCommand killCommand = new SimpleCommand("kill -9" + pids);
+            shell.add(killCommand).waitForFinish();
+            ProcessTable.invalidate();
 
-        public ArrayList<String> getPids() {
-            return pids;
+            if (killCommand.getExitCode() == 0) {
+                return true;
+            } else {
+                return false;
+            }
+        } else {
+            Log.d(RootCommands.TAG, "No pid found! Nothing was killed!");
+            return false;
         }
+    }
 
-        public String getPidsString() {
-            StringBuilder sb = new StringBuilder();
-            for (String s : pids) {
-                sb.append(s);
-                sb.append(" ");
-            }
+    public static final int SIGNAL_TERM = 15;
+    public static final int SIGNAL_KILL = 9;
+
+    private static final String KILLED = "rc-killed";
+
+    /**
+     * This command class signals several pids and gets the ones that were signalled
+     */
+    private class KillCommand extends Command {
+        private HashSet<Integer> killed = new HashSet<Integer>();
+
+        public KillCommand(int signal, Collection<Integer> pids) {
+            super(killLine(signal, pids));
+        }
 
-            return sb.toString();
+        public HashSet<Integer> getKilled() {
+            return killed;
         }
 
         @Override
         public void output(int id, String line) {
-            // general check if line contains processName
-            if (line.contains(processName)) {
-                Matcher psMatcher = psPattern.matcher(line);
-
-                // try to match line exactly
-                try {
-                    if (psMatcher.find()) {
-                        String pid = psMatcher.group(1);
-                        // add to pids list
-                        pids.add(pid);
-                        Log.d(RootCommands.TAG, "Found pid: " + pid);
-                    } else {
-                        Log.d(RootCommands.TAG, "Matching in ps command failed!");
-                    }
-                } catch (Exception e) {
-                    Log.e(RootCommands.TAG, "Error with regex!", e);
-                }
+            if (!line.startsWith(KILLED + " ")) {
+                return;
+            }
+            try {
+                killed.add(Integer.valueOf(line.substring(KILLED.length() + 1)));
+            } catch (NumberFormatException e) {
+                Log.e(RootCommands.TAG, "Invalid kill status: " + line);
             }
         }
 
@@ -148,40 +193,88 @@ public class Toolbox {
     }
 
     /**
-     * This method can be used to kill a running process
+     * kill is a shell builtin, so the loop signals all pids without starting processes, while
+     * reporting each pid instead of one exit code for all of them
+     */
+    private static String killLine(int signal, Collection<Integer> pids) {
+        StringBuilder line = new StringBuilder("for p in");
+        for (Integer pid : pids) {
+            line.append(' ').append(pid);
+        }
+        line.append("; do kill -").append(signal).append(" $p 2>/dev/null && echo ")
+                .append(KILLED).append(" $p; done; true");
+        return line.toString();
+    }
+
+    /**
+     * Kills all processes with the given names, see killAll(Collection, int)
+     * 
+     * @param processNames
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public Map<String, List<Integer>> killAll(Collection<String> processNames)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        return killAll(processNames, SIGNAL_KILL);
+    }
+
+    /**
+     * Sends signal to all processes with the given names. All names are looked up in one
+     * ProcessTable, read right before signalling like in killAll(String), and all matching pids
+     * are signalled with one command, instead of ps and kill for every name.
      * 
      * (commands: ps, kill)
      * 
-     * @param processName
-     *            name of process to kill
-     * @return <code>true</code> if process was found and killed successfully
-     * @throws IOException
-     * @throws TimeoutException
+     * @param processNames
+     *            names like in killAll(String)
+     * @param signal
+     *            example: SIGNAL_KILL or SIGNAL_TERM
+     * @return pids that were signalled for every name, in the order of processNames, empty lists
+     *         for names that were not found
      * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
      */
-    public boolean killAll(String processName) throws BrokenBusyboxException, TimeoutException,
-            IOException {
-        Log.d(RootCommands.TAG, "Killing process " + processName);
-
-        PsCommand psCommand = new PsCommand(processName);
-        shell.add(psCommand).waitForFinish();
+    public Map<String, List<Integer>> killAll(Collection<String> processNames, int signal)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        ProcessTable processTable = ProcessTable.read(shell);
+
+        // a process can match several names, but is signalled once
+        LinkedHashMap<String, List<ProcessTable.Entry>> matches =
+                new LinkedHashMap<String, List<ProcessTable.Entry>>();
+        LinkedHashSet<Integer> pids = new LinkedHashSet<Integer>();
+        for (String name : processNames) {
+            List<ProcessTable.Entry> processes = processTable.findByName(name);
+            matches.put(name, processes);
+            for (ProcessTable.Entry process : processes) {
+                pids.add(process.getPid());
+            }
+        }
 
-        // kill processes
-        if (!psCommand.getPids().isEmpty()) {
-            // example: kill -9 1234 1222 5343
-            SimpleCommand killCommand = new SimpleCommand("kill -9 "
-                    + psCommand.getPidsString());
+        HashSet<Integer> killed = new HashSet<Integer>();
+        if (!pids.isEmpty()) {
+            Log.d(RootCommands.TAG, "Sending signal " + signal + " to " + pids);
+            KillCommand killCommand = new KillCommand(signal, pids);
             shell.add(killCommand).waitForFinish();
-
-            if (killCommand.getExitCode() == 0) {
-                return true;
-            } else {
-                return false;
-            }
+            ProcessTable.invalidate();
+            killed = killCommand.getKilled();
         } else {
             Log.d(RootCommands.TAG, "No pid found! Nothing was killed!");
-            return false;
         }
+
+        LinkedHashMap<String, List<Integer>> report = new LinkedHashMap<String, List<Integer>>();
+        for (Map.Entry<String, List<ProcessTable.Entry>> match : matches.entrySet()) {
+            ArrayList<Integer> killedPids = new ArrayList<Integer>();
+            for (ProcessTable.Entry process : match.getValue()) {
+                if (killed.contains(process.getPid())) {
+                    killedPids.add(process.getPid());
+                }
+            }
+            report.put(match.getKey(), killedPids);
+        }
+        return report;
     }
 
     /**
@@ -201,7 +294,8 @@ public class Toolbox {
     }
 
     /**
-     * This method can be used to to check if a process is running
+     * This method can be used to to check if a process is running. Checks within
+     * ProcessTable.getCacheTime() share one ps.
      * 
      * @param processName
      *            name of process to check
@@ -213,11 +307,8 @@ public class Toolbox {
      */
     public boolean isProcessRunning(String processName) throws BrokenBusyboxException,
             TimeoutException, IOException {
-        PsCommand psCommand = new PsCommand(processName);
-        shell.add(psCommand).waitForFinish();
-
         // if pids are available process is running!
-        if (!psCommand.getPids().isEmpty()) {
+        if (!ProcessTable.getCached(shell).findByName(processName).isEmpty()) {
             return true;
         } else {
             return false;
@@ -427,6 +518,22 @@ public class Toolbox {
         }
     }
 
+    /**
+     * Asynchronous version of setFilePermissions
+     * 
+     * @param file
+     *            absolute path to file
+     * @param permissions
+     *            String like 777
+     * @return future completed with true if command worked
+     * @throws IOException
+     */
+    public ResultFuture<Boolean> setFilePermissionsAsync(String file, String permissions)
+            throws IOException {
+        SimpleCommand chmodCommand = new SimpleCommand("chmod " + permissions + " " + file);
+        return shell.submit(chmodCommand).transform(EXIT_CODE_SUCCESS);
+    }
+
     /**
      * This will return a String that represent the symlink for a specified file.
      * 
@@ -485,52 +592,846 @@ public class Toolbox {
         }
 
         // remount destination as read/write before copying to it
+        RemountSession session = null;
         if (remountAsRw) {
-            if (!remount(destination, "RW")) {
-                Log.d(RootCommands.TAG,
-                        "Remounting failed! There is probably no need to remount this partition!");
+            session = openRemountSession(destination);
+        }
+
+        boolean commandSuccess = false;
+        try {
+            // get permissions of source before overwriting
+            String permissions = null;
+            if (preservePermissions) {
+                permissions = getFilePermissions(source);
+            }
+
+            SimpleCommand ddCommand = new SimpleCommand("dd if=" + source + " of="
+                    + destination);
+            // on timeout only kill the copy, not the whole shell
+            ddCommand.setIsolated(true);
+            shell.add(ddCommand).waitForFinish();
+
+            if (ddCommand.getExitCode() == 0) {
+                commandSuccess = true;
+            } else {
+                // try cat if dd fails
+                SimpleCommand catCommand = new SimpleCommand("cat " + source + " > "
+                        + destination);
+                catCommand.setIsolated(true);
+                shell.add(catCommand).waitForFinish();
+
+                if (catCommand.getExitCode() == 0) {
+                    commandSuccess = true;
+                }
+            }
+
+            // set back permissions from source to destination
+            if (preservePermissions) {
+                setFilePermissions(destination, permissions);
+            }
+        } finally {
+            // remount destination back to read only, unless other sessions still need it
+            if (session != null) {
+                session.close();
             }
         }
 
-        // get permissions of source before overwriting
-        String permissions = null;
-        if (preservePermissions) {
-            permissions = getFilePermissions(source);
+        return commandSuccess;
+    }
+
+    public static final int COPY_FAILED = 0;
+    public static final int COPY_SKIPPED = 1;
+    public static final int COPY_DONE = 2;
+
+    /**
+     * Shell command printing "size mtime" of a file on one line, only the size if stat is not
+     * available and nothing if the file does not exist
+     */
+    private static String fileStatCommand(String file) {
+        return "echo $(stat -c '%s %Y' " + file + " 2>/dev/null || busybox stat -c '%s %Y' "
+                + file + " 2>/dev/null || ( " + fileSizeCommand(file) + " ) 2>/dev/null)";
+    }
+
+    /**
+     * Shell command printing the md5 checksum of a file followed by its name, nothing if no md5
+     * tool is available
+     */
+    private static String checksumCommand(String file) {
+        return "echo $(md5sum " + file + " 2>/dev/null || busybox md5sum " + file
+                + " 2>/dev/null || md5 " + file + " 2>/dev/null)";
+    }
+
+    /**
+     * Checks if destination has the same content as source. Size and modification time are
+     * compared first, if only the modification times differ the checksums are compared. Equal
+     * modification times are only trusted if they are older than the resolution of a second, a
+     * file changed within the same second could otherwise look unchanged.
+     * 
+     * (commands: stat, md5sum)
+     * 
+     * @param source
+     * @param destination
+     * @return true if both files are known to be equal
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean isFileUnchanged(String source, String destination)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        SimpleCommand statCommand = new SimpleCommand(fileStatCommand(source),
+                fileStatCommand(destination), "date +%s");
+        shell.add(statCommand).waitForFinish();
+
+        String[] stats = statCommand.getOutput().split("\n");
+        if (stats.length != 3 || stats[0].length() == 0 || stats[1].length() == 0) {
+            // at least one file is missing
+            return false;
+        }
+        String[] sourceStat = stats[0].split(" ");
+        String[] destinationStat = stats[1].split(" ");
+        if (!sourceStat[0].equals(destinationStat[0])) {
+            return false;
+        }
+        if (sourceStat.length == 2 && destinationStat.length == 2
+                && sourceStat[1].equals(destinationStat[1])) {
+            try {
+                long now = Long.parseLong(stats[2].trim());
+                if (now - Long.parseLong(sourceStat[1]) > 1) {
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                Log.d(RootCommands.TAG, "Could not parse modification time, comparing checksums");
+            }
         }
 
-        boolean commandSuccess = false;
+        SimpleCommand checksumCommand = new SimpleCommand(checksumCommand(source),
+                checksumCommand(destination));
+        shell.add(checksumCommand).waitForFinish();
 
-        SimpleCommand ddCommand = new SimpleCommand("dd if=" + source + " of="
-                + destination);
-        shell.add(ddCommand).waitForFinish();
+        String[] checksums = checksumCommand.getOutput().split("\n");
+        if (checksums.length != 2 || checksums[0].length() == 0) {
+            Log.d(RootCommands.TAG, "No checksums available, assuming " + destination
+                    + " changed");
+            return false;
+        }
+        return checksums[0].split(" ")[0].equals(checksums[1].split(" ")[0]);
+    }
 
-        if (ddCommand.getExitCode() == 0) {
-            commandSuccess = true;
-        } else {
-            // try cat if dd fails
-            SimpleCommand catCommand = new SimpleCommand("cat " + source + " > "
-                    + destination);
-            shell.add(catCommand).waitForFinish();
+    /**
+     * Like copyFile(), but skips the remount and the copy if destination already has the same
+     * content as source, see isFileUnchanged(). After copying, the modification time of source is
+     * set on destination, so the next check only needs to compare size and modification time.
+     * 
+     * (commands: stat, md5sum, dd, touch)
+     * 
+     * @param source
+     *            example: /data/data/org.adaway/files/hosts
+     * @param destination
+     *            example: /system/etc/hosts
+     * @param remountAsRw
+     *            remounts the destination as read/write before writing to it
+     * @param preservePermissions
+     *            sets the permissions of source on destination
+     * @return COPY_SKIPPED if unchanged, otherwise COPY_DONE or COPY_FAILED
+     * @throws BrokenBusyboxException
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    public int copyFileIfChanged(String source, String destination, boolean remountAsRw,
+            boolean preservePermissions) throws BrokenBusyboxException, IOException,
+            TimeoutException {
+        if (isFileUnchanged(source, destination)) {
+            Log.d(RootCommands.TAG, destination + " is unchanged, not copying");
+            return COPY_SKIPPED;
+        }
 
-            if (catCommand.getExitCode() == 0) {
-                commandSuccess = true;
+        RemountSession session = null;
+        if (remountAsRw) {
+            session = openRemountSession(destination);
+        }
+
+        boolean copied;
+        try {
+            copied = copyFile(source, destination, false, preservePermissions);
+            if (copied) {
+                // touch -r is not available in toolbox, the next check then compares checksums
+                SimpleCommand touchCommand = new SimpleCommand("touch -r " + source + " "
+                        + destination);
+                shell.add(touchCommand).waitForFinish();
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+
+        return copied ? COPY_DONE : COPY_FAILED;
+    }
+
+    private static final String COPY_STATUS = "rc-copy-status";
+
+    /**
+     * Shell function printing the octal mode of a file, like stat -c %a. Parsed from ls -l, which
+     * is available with every toolbox, as toolbox has no stat before Android 6.
+     */
+    private static final String FILE_MODE_FUNCTION = "rc_mode() { rc_p=$(ls -ld $1) || return; "
+            + "rc_p=${rc_p%% *}; rc_p=${rc_p#?}; rc_s=0; rc_o=; for rc_b in 4 2 1; do rc_d=0; "
+            + "for rc_w in 4 2 1; do case $rc_p in "
+            + "[rwx]*) rc_d=$((rc_d + rc_w)) ;; "
+            + "[st]*) rc_d=$((rc_d + rc_w)); rc_s=$((rc_s + rc_b)) ;; "
+            + "[ST]*) rc_s=$((rc_s + rc_b)) ;; esac; "
+            + "rc_p=${rc_p#?}; done; rc_o=$rc_o$rc_d; done; echo $rc_s$rc_o; }";
+
+    /**
+     * This command class copies several files and gets the exit code of every copy
+     */
+    private class CopyFilesCommand extends Command {
+        private int[] status;
+
+        public CopyFilesCommand(int timeout, String[] copyLines) {
+            super(timeout, copyLines);
+            // on timeout only kill the copies, not the whole shell
+            setIsolated(true);
+            // all COPY_FAILED until their exit code was read
+            status = new int[copyLines.length];
+        }
+
+        public int[] getStatus() {
+            return status;
+        }
+
+        @Override
+        public void output(int id, String line) {
+            if (!line.startsWith(COPY_STATUS + " ")) {
+                return;
+            }
+            String[] fields = line.split(" ");
+            try {
+                int index = Integer.parseInt(fields[1]);
+                if (index >= 0 && index < status.length && fields[2].equals("0")) {
+                    status[index] = COPY_DONE;
+                }
+            } catch (NumberFormatException e) {
+                Log.e(RootCommands.TAG, "Invalid copy status: " + line);
             }
         }
 
-        // set back permissions from source to destination
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+
+    }
+
+    /**
+     * Copies several files with one command, see copyFiles(List, boolean, int)
+     * 
+     * @param copies
+     * @param remountAsRw
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public int[] copyFiles(List<CopySpec> copies, boolean remountAsRw)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        return copyFiles(copies, remountAsRw, RootCommands.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Copies several files with one command written to the shell at once, instead of one round
+     * trip per file. With remountAsRw a remount session is opened for the partition of every
+     * destination, so each read only partition is remounted once before and back to read only
+     * after all copies.
+     * 
+     * (commands: dd, cat, chmod, ls)
+     * 
+     * @param copies
+     * @param remountAsRw
+     *            remounts the partitions of the destinations as read/write before writing to them
+     * @param timeout
+     *            for all copies together
+     * @return COPY_DONE or COPY_FAILED for every copy, in the order of copies
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public int[] copyFiles(List<CopySpec> copies, boolean remountAsRw, int timeout)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        String[] copyLines = new String[copies.size()];
+        boolean preservePermissions = false;
+        for (int i = 0; i < copyLines.length; i++) {
+            CopySpec copy = copies.get(i);
+            String source = copy.getSource();
+            String destination = copy.getDestination();
+            if (source.endsWith("/") || destination.endsWith("/")) {
+                throw new FileNotFoundException("dd can only copy files!");
+            }
+
+            String line = "{ dd if=" + source + " of=" + destination + " || cat " + source
+                    + " > " + destination + "; }";
+            if (copy.isPreservePermissions()) {
+                line += " && chmod $(rc_mode " + source + ") " + destination;
+                preservePermissions = true;
+            }
+            copyLines[i] = "{ " + line + "; } 2>&1; echo " + COPY_STATUS + " " + i + " $?";
+        }
         if (preservePermissions) {
-            setFilePermissions(destination, permissions);
+            // the isolated command runs in a subshell, the function is not left in the shell
+            copyLines[0] = FILE_MODE_FUNCTION + "; " + copyLines[0];
         }
 
-        // remount destination back to read only
-        if (remountAsRw) {
-            if (!remount(destination, "RO")) {
-                Log.d(RootCommands.TAG,
-                        "Remounting failed! There is probably no need to remount this partition!");
+        // group destinations by partition, so each one is remounted only once
+        ArrayList<RemountSession> sessions = new ArrayList<RemountSession>();
+        CopyFilesCommand copyCommand = new CopyFilesCommand(timeout, copyLines);
+        try {
+            if (remountAsRw) {
+                MountTable mountTable = MountTable.getCached(shell);
+                LinkedHashSet<String> mountPoints = new LinkedHashSet<String>();
+                for (CopySpec copy : copies) {
+                    Mount mount = mountTable.findMount(copy.getDestination());
+                    if (mount != null) {
+                        mountPoints.add(mount.getMountPoint().getPath());
+                    }
+                }
+                for (String mountPoint : mountPoints) {
+                    sessions.add(openRemountSession(mountPoint));
+                }
+            }
+
+            shell.add(copyCommand).waitForFinish();
+        } finally {
+            for (RemountSession session : sessions) {
+                session.close();
             }
         }
+        return copyCommand.getStatus();
+    }
 
-        return commandSuccess;
+    /**
+     * Asynchronous version of copyFile without remounting and preserving permissions. dd and the
+     * cat fallback are executed as one command on the shell.
+     * 
+     * @param source
+     *            example: /data/data/org.adaway/files/hosts
+     * @param destination
+     *            example: /system/etc/hosts
+     * @return future completed with true if it was successfully copied
+     * @throws IOException
+     */
+    public ResultFuture<Boolean> copyFileAsync(String source, String destination)
+            throws IOException {
+        if (source.endsWith("/") || destination.endsWith("/")) {
+            throw new FileNotFoundException("dd can only copy files!");
+        }
+
+        // grouped, so that stderr of both is redirected
+        SimpleCommand copyCommand = new SimpleCommand("{ dd if=" + source + " of=" + destination
+                + " || cat " + source + " > " + destination + "; }");
+        copyCommand.setIsolated(true);
+        return shell.submit(copyCommand).transform(EXIT_CODE_SUCCESS);
+    }
+
+    /**
+     * Copies a large file, e.g. a partition image, with dd using blocks of LARGE_COPY_BLOCK_SIZE
+     * instead of dd's default of 512 bytes. The file is split into parallelism ranges of whole
+     * blocks, copied concurrently with skip and seek on shells leased from pool. The copy is
+     * verified by comparing the size of destination with source afterwards. All shells are leased
+     * before the first range starts, if one range fails the others are killed.
+     * 
+     * The size of a block device is read from sysfs, so it is not read twice. Each range has its
+     * own timeout, which has to cover size / parallelism bytes at the speed of the slower of both
+     * storages, e.g. a range of 256 MB takes 26 s on flash writing 10 MB/s.
+     * 
+     * (commands: stat or ls, dd)
+     * 
+     * @param pool
+     *            needs parallelism shells that are not leased
+     * @param source
+     *            example: /dev/block/mmcblk0p1
+     * @param destination
+     *            example: /sdcard/boot.img
+     * @param parallelism
+     *            number of ranges and shells
+     * @param timeout
+     *            for copying a single range of size / parallelism bytes, counted from adding it to
+     *            its shell
+     * @return throughput of the copying itself in MB/s
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             if a range could not be copied or the size of destination does not match
+     */
+    public double copyLargeFile(ShellPool pool, String source, String destination,
+            int parallelism, int timeout) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        if (source.endsWith("/") || destination.endsWith("/")) {
+            throw new FileNotFoundException("dd can only copy files!");
+        }
+
+        long size = getFileSize(source);
+        long blocks = (size + LARGE_COPY_BLOCK_SIZE - 1) / LARGE_COPY_BLOCK_SIZE;
+        long blocksPerRange = Math.max(1, (blocks + parallelism - 1) / parallelism);
+        int ranges = (int) ((blocks + blocksPerRange - 1) / blocksPerRange);
+
+        // ranges are written with conv=notrunc, so truncate once before
+        SimpleCommand truncateCommand = new SimpleCommand("true > " + destination);
+        shell.add(truncateCommand).waitForFinish();
+        if (truncateCommand.getExitCode() != 0) {
+            throw new IOException("Could not write " + destination + ": "
+                    + truncateCommand.getOutput());
+        }
+
+        ArrayList<Shell> leasedShells = new ArrayList<Shell>();
+        ArrayList<SimpleCommand> ddCommands = new ArrayList<SimpleCommand>();
+        boolean success = true;
+        TimeoutException timeoutException = null;
+        long time;
+        try {
+            // lease all shells first, so the ranges start together and are timed together
+            for (int i = 0; i < ranges; i++) {
+                leasedShells.add(pool.acquire());
+            }
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < ranges; i++) {
+                long first = i * blocksPerRange;
+                SimpleCommand ddCommand = new SimpleCommand(timeout, "dd if=" + source + " of="
+                        + destination + " bs=" + LARGE_COPY_BLOCK_SIZE + " skip=" + first
+                        + " seek=" + first + " count=" + blocksPerRange + " conv=notrunc");
+                // a range hitting its timeout is killed, its shell stays usable
+                ddCommand.setIsolated(true);
+                leasedShells.get(i).add(ddCommand);
+                ddCommands.add(ddCommand);
+            }
+
+            for (SimpleCommand ddCommand : ddCommands) {
+                try {
+                    ddCommand.waitForFinish();
+                } catch (TimeoutException e) {
+                    timeoutException = e;
+                }
+                if (success && (ddCommand.isTimedOut() || ddCommand.getExitCode() != 0)) {
+                    Log.e(RootCommands.TAG, "Copying range failed: " + ddCommand.getOutput());
+                    success = false;
+                    // the copy failed anyway, do not wait for the other ranges
+                    killRanges(leasedShells, ddCommands);
+                }
+            }
+            time = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        } finally {
+            for (int i = 0; i < leasedShells.size(); i++) {
+                Shell rangeShell = leasedShells.get(i);
+                // do not give shells back to the pool while they are still copying
+                if (i >= ddCommands.size() || !ddCommands.get(i).isFinished()) {
+                    try {
+                        rangeShell.close();
+                    } catch (IOException e) {
+                        Log.e(RootCommands.TAG, "IOException while closing shell", e);
+                    }
+                }
+                pool.release(rangeShell);
+            }
+        }
+        if (timeoutException != null) {
+            throw timeoutException;
+        }
+
+        long copied = getFileSize(destination);
+        if (!success || copied != size) {
+            throw new IOException("Copied " + copied + " of " + size + " bytes from " + source);
+        }
+
+        double throughput = size / 1048576.0 / (time / 1000.0);
+        Log.d(RootCommands.TAG, "Copied " + size + " bytes from " + source + " in "
+                + leasedShells.size() + " ranges, " + time + " ms, " + throughput + " MB/s");
+        return throughput;
+    }
+
+    /**
+     * Kills the ranges of copyLargeFile() that did not finish yet
+     */
+    private static void killRanges(List<Shell> rangeShells, List<SimpleCommand> ddCommands) {
+        for (int i = 0; i < ddCommands.size(); i++) {
+            SimpleCommand ddCommand = ddCommands.get(i);
+            if (ddCommand.isFinished()) {
+                continue;
+            }
+            Shell rangeShell = rangeShells.get(i);
+            // not started yet, or its pid was not read yet
+            if (!rangeShell.kill(ddCommand) && !rangeShell.cancel(ddCommand)) {
+                Log.d(RootCommands.TAG, "Range " + i + " could not be stopped");
+            }
+        }
+    }
+
+    /**
+     * Shell command printing the size of a file. stat and wc are not part of toolbox before Android
+     * 6, the size of regular files is then taken from ls -l, which has it in the fourth column with
+     * toolbox and in the fifth one with a link count column. Block devices have no size in stat or
+     * ls, their sectors are read from sysfs under the name of the device node symlinks like
+     * by-name/boot point to, as wc would read the whole device. Other files are measured with wc.
+     * Has to run in a subshell.
+     */
+    private static String fileSizeCommand(String file) {
+        return "if [ -f " + file + " ]; then "
+                + "stat -c %s " + file + " 2>/dev/null || busybox stat -c %s " + file
+                + " 2>/dev/null || { set -- $(ls -l " + file + ") && case \"$5\" in "
+                + "''|*[!0-9]*) echo $4 ;; *) echo $5 ;; esac; }; "
+                // sysfs knows the device node, not by-name symlinks. readlink -f is missing in
+                // toolbox and readlink itself in old ones, then the target is the end of ls -l.
+                + "elif [ -b " + file + " ] && sectors=$(rc_dev=" + file + "; "
+                + "while [ -L $rc_dev ]; do rc_link=$(readlink $rc_dev 2>/dev/null) "
+                + "|| { set -- $(ls -l $rc_dev) && eval rc_link=\\${$#}; }; case $rc_link in "
+                + "/*) rc_dev=$rc_link ;; *) rc_dev=${rc_dev%/*}/$rc_link ;; esac; done; "
+                + "cat /sys/class/block/${rc_dev##*/}/size 2>/dev/null); then "
+                + "echo $((sectors * 512)); "
+                + "elif [ -e " + file + " ]; then "
+                + "wc -c < " + file + " 2>/dev/null || busybox wc -c < " + file + "; "
+                + "else echo \"" + file + ": No such file\" >&2; false; fi";
+    }
+
+    /**
+     * Returns the size of a file or block device in bytes
+     * 
+     * (commands: stat or ls, wc for files that are not regular files or block devices)
+     * 
+     * @param file
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             if the size could not be read
+     */
+    public long getFileSize(String file) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        // subshell, so that stderr of all fallbacks is redirected and ls does not change the
+        // positional parameters of the shell
+        SimpleCommand sizeCommand = new SimpleCommand("( " + fileSizeCommand(file) + " )");
+        shell.add(sizeCommand).waitForFinish();
+
+        String output = sizeCommand.getOutput().trim();
+        if (sizeCommand.getExitCode() != 0) {
+            throw new IOException("Could not get size of " + file + ": " + output);
+        }
+        try {
+            return Long.parseLong(output);
+        } catch (NumberFormatException e) {
+            throw new IOException("Could not get size of " + file + ": " + output);
+        }
+    }
+
+    /**
+     * Opens a file for reading directly from stdout of the shell, nothing is staged on disk. The
+     * stream ends with an IOException if the file could not be read completely. The shell waits
+     * for the reader, read the stream in time or close it to let the shell go on.
+     * 
+     * (commands: stat or ls, cat)
+     * 
+     * @param file
+     *            regular file, use readSmallFile() for /proc and /sys
+     * @param timeout
+     *            for reading the whole file
+     * @return
+     * @throws IOException
+     */
+    public InputStream openFile(String file, int timeout) throws IOException {
+        StreamingCommand catCommand = new StreamingCommand(timeout, fileSizeCommand(file), "cat "
+                + file);
+        catCommand.setIsolated(true);
+        shell.add(catCommand);
+        return catCommand.getInputStream();
+    }
+
+    /**
+     * Reads a whole file, see readFile(String, OutputStream, int)
+     * 
+     * @param file
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public byte[] readFile(String file) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        readFile(file, out, DEFAULT_READ_CHUNK_SIZE);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a file in chunks of chunkSize bytes with the default timeout per chunk, see
+     * readFile(String, OutputStream, int, int)
+     * 
+     * @param file
+     * @param out
+     * @param chunkSize
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public void readFile(String file, OutputStream out, int chunkSize)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        readFile(file, out, chunkSize, RootCommands.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Reads a file in chunks of chunkSize bytes, each one a separate command with its own timeout,
+     * so large files do not need a large timeout. Nothing is staged on disk.
+     * 
+     * (commands: stat or ls, dd)
+     * 
+     * @param file
+     *            regular file or block device, use readSmallFile() for /proc and /sys
+     * @param out
+     *            receives the content of the file
+     * @param chunkSize
+     * @param timeout
+     *            for reading a single chunk, counted from adding its dd to the shell
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             if the file could not be read or changed its size while reading
+     */
+    public void readFile(String file, OutputStream out, int chunkSize, int timeout)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        long size = getFileSize(file);
+        byte[] buffer = new byte[Math.min(chunkSize, 65536)];
+
+        for (long chunk = 0; chunk * chunkSize < size; chunk++) {
+            long length = Math.min(chunkSize, size - chunk * chunkSize);
+            StreamingCommand ddCommand = new StreamingCommand(timeout, "echo " + length, "dd if="
+                    + file + " bs=" + chunkSize + " skip=" + chunk + " count=1");
+            ddCommand.setIsolated(true);
+            shell.add(ddCommand);
+
+            InputStream in = ddCommand.getInputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            ddCommand.waitForFinish();
+        }
+    }
+
+    /**
+     * This command class gets the content of a file with one cat, passing lines without decoding
+     */
+    private class CatCommand extends Command {
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private boolean firstLine = true;
+        private int exitCode;
+
+        public CatCommand(String file) {
+            // the echo terminates the last line, whether the file ends with a newline or not
+            super("cat " + file + " && echo");
+            setSeparateErrorOutput(true);
+        }
+
+        public byte[] getContent() {
+            return content.toByteArray();
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        @Override
+        public void processOutput(byte[] buffer, int offset, int length) {
+            if (!firstLine) {
+                content.write('\n');
+            }
+            firstLine = false;
+            content.write(buffer, offset, length);
+        }
+
+        @Override
+        public void output(int id, String line) {
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+            this.exitCode = exitCode;
+        }
+
+    }
+
+    /**
+     * Reads a small text file with a single command, for nodes like /proc/mounts that report no
+     * size or change while being read. Carriage returns at line ends are removed, use readFile()
+     * for binary files.
+     * 
+     * (commands: cat)
+     * 
+     * @param file
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             if the file could not be read
+     */
+    public byte[] readSmallFile(String file) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        CatCommand catCommand = new CatCommand(file);
+        shell.add(catCommand).waitForFinish();
+
+        if (catCommand.getExitCode() != 0) {
+            throw new IOException("Could not read " + file);
+        }
+        return catCommand.getContent();
+    }
+
+    /**
+     * Escapes bytes for a single quoted printf format string, everything but a few safe characters
+     * is written as octal escape
+     */
+    private static void appendEscaped(StringBuilder sb, byte[] buffer, int length,
+            String octalPrefix) {
+        for (int i = 0; i < length; i++) {
+            int b = buffer[i] & 0xff;
+            if (b < 128 && WRITE_SAFE_CHARACTERS.indexOf(b) >= 0) {
+                sb.append((char) b);
+            } else {
+                sb.append(octalPrefix).append((char) ('0' + (b >> 6)))
+                        .append((char) ('0' + ((b >> 3) & 7))).append((char) ('0' + (b & 7)));
+            }
+        }
+    }
+
+    /**
+     * Finds a command writing octal escapes as raw bytes. printf is not part of toolbox before
+     * Android 6, mksh has print with a different escape syntax instead.
+     */
+    private void probePrintCommand() throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        if (printCommand != null) {
+            return;
+        }
+
+        String[][] candidates = { { "printf", "\\" }, { "busybox printf", "\\" },
+                { "print -n", "\\0" } };
+        byte[] probe = "%\n".getBytes();
+        for (String[] candidate : candidates) {
+            StringBuilder sb = new StringBuilder(candidate[0]).append(" '");
+            appendEscaped(sb, probe, probe.length, candidate[1]);
+            SimpleCommand probeCommand = new SimpleCommand(sb.append("'").toString());
+            shell.add(probeCommand).waitForFinish();
+
+            if (probeCommand.getExitCode() == 0 && probeCommand.getOutput().equals("%\n")) {
+                printCommand = candidate[0];
+                octalPrefix = candidate[1];
+                return;
+            }
+        }
+        throw new IOException("No printf available to write files");
+    }
+
+    /**
+     * Writes a file from Java without a staging copy on disk. The data is sent over stdin of the
+     * shell in chunks of WRITE_CHUNK_SIZE bytes, each one appended to the file by a printf command.
+     * Shells read their input ahead, so raw bytes can not be passed to a reader like dd, they are
+     * escaped instead.
+     * 
+     * (commands: printf, mv, stat, chmod, chown, chcon)
+     * 
+     * @param file
+     *            example: /system/etc/hosts
+     * @param in
+     *            read until its end, not closed
+     * @param atomic
+     *            writes to file.rc-tmp first and renames it to file when complete, so other
+     *            processes never see a partial file. Mode, owner and SELinux context of an
+     *            existing file are copied to file.rc-tmp before. Without stat they can not be read,
+     *            file.rc-tmp is then copied into file, which keeps them but is not atomic.
+     *            Otherwise a failed write leaves a partial file.
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             if the file could not be written
+     */
+    public void writeFile(String file, InputStream in, boolean atomic)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        probePrintCommand();
+
+        String target = atomic ? file + ".rc-tmp" : file;
+        ArrayList<SimpleCommand> inFlight = new ArrayList<SimpleCommand>();
+        // not the special builtin ":", a failed redirection would exit the shell
+        inFlight.add(new SimpleCommand("true > " + target));
+        shell.add(inFlight.get(0));
+
+        boolean success = true;
+        byte[] buffer = new byte[WRITE_CHUNK_SIZE];
+        int length;
+        while (success && (length = readChunk(in, buffer)) > 0) {
+            StringBuilder sb = new StringBuilder(length * 2 + 64);
+            sb.append(printCommand).append(" '");
+            appendEscaped(sb, buffer, length, octalPrefix);
+            sb.append("' >> ").append(target);
+
+            SimpleCommand chunkCommand = new SimpleCommand(sb.toString());
+            shell.add(chunkCommand);
+            inFlight.add(chunkCommand);
+
+            if (inFlight.size() > WRITE_CHUNKS_IN_FLIGHT) {
+                success = waitForWrite(inFlight.remove(0), file);
+            }
+        }
+        for (SimpleCommand command : inFlight) {
+            success &= waitForWrite(command, file);
+        }
+
+        if (atomic) {
+            SimpleCommand finishCommand = new SimpleCommand(success ? replaceCommand(target, file)
+                    : "rm " + target);
+            shell.add(finishCommand);
+            success &= waitForWrite(finishCommand, file);
+        }
+        if (!success) {
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    /**
+     * Shell command replacing file with temp. mv gives file the mode, owner and SELinux context of
+     * temp, so they are copied from file to temp before. If they can not be copied, e.g. without
+     * stat before Android 6, temp is copied into file with cat instead, which keeps the attributes
+     * of file but is not atomic. chown comes first, it clears setuid bits set by chmod.
+     */
+    private static String replaceCommand(String temp, String file) {
+        return "if [ ! -e " + file + " ]; then mv " + temp + " " + file + "; "
+                + "elif rc_mode=$(stat -c %a " + file + ") && rc_owner=$(stat -c %u:%g " + file
+                + ") && chown $rc_owner " + temp + " && chmod $rc_mode " + temp + " && "
+                + "{ ! rc_context=$(stat -c %C " + file + " 2>/dev/null) "
+                + "|| [ -z \"$rc_context\" ] || [ \"$rc_context\" = \"?\" ] "
+                + "|| chcon $rc_context " + temp + "; }; then "
+                + "mv " + temp + " " + file + "; "
+                + "else cat " + temp + " > " + file + " && rm " + temp + "; fi";
+    }
+
+    private boolean waitForWrite(SimpleCommand command, String file)
+            throws BrokenBusyboxException, TimeoutException {
+        command.waitForFinish();
+        if (command.getExitCode() != 0) {
+            Log.e(RootCommands.TAG, "Writing " + file + " failed: " + command.getOutput());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fills the buffer unless the stream ends before
+     * 
+     * @return number of bytes read, 0 at the end of the stream
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
     }
 
     public static final int REBOOT_HOTREBOOT = 1;
@@ -630,6 +1531,24 @@ public class Toolbox {
         }
     }
 
+    /**
+     * Asynchronous version of fileExists
+     * 
+     * @param file
+     *            String that represent the file, including the full path to the file and its name.
+     * @return future completed with true if the file exists
+     * @throws IOException
+     */
+    public ResultFuture<Boolean> fileExistsAsync(String file) throws IOException {
+        final FileExistsCommand fileExistsCommand = new FileExistsCommand(file);
+        return shell.submit(fileExistsCommand).transform(
+                new ResultFuture.Transformer<CommandResult, Boolean>() {
+                    public Boolean transform(CommandResult result) {
+                        return fileExistsCommand.isFileExists();
+                    }
+                });
+    }
+
     public abstract class WithPermissions {
         abstract void whileHavingPermissions();
     }
@@ -733,6 +1652,51 @@ public class Toolbox {
         return (remounter.remount(file, mountType));
     }
 
+    /**
+     * Keeps the partition of path mounted as read/write until the returned session is closed, see
+     * openRemountSession(String, long)
+     * 
+     * @param path
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public RemountSession openRemountSession(String path) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        return openRemountSession(path, 0);
+    }
+
+    /**
+     * Keeps the partition of path mounted as read/write until the returned session is closed.
+     * Sessions are counted per partition, across all Toolbox instances: the first session remounts
+     * a read only partition as read/write, the last one remounts it back to read only after
+     * gracePeriod. Open a session around a batch of writes to remount once instead of for every
+     * file, copyFile() and friends with remountAsRw join open sessions.
+     * 
+     * <pre>
+     * RemountSession session = tb.openRemountSession(&quot;/system&quot;, 2000);
+     * try {
+     *     // writes to /system
+     * } finally {
+     *     session.close();
+     * }
+     * </pre>
+     * 
+     * @param path
+     *            file path, example: /system/etc/hosts
+     * @param gracePeriod
+     *            milliseconds the partition stays read/write after the last session was closed
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public RemountSession openRemountSession(String path, long gracePeriod)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        return RemountSession.open(shell, path, gracePeriod);
+    }
+
     /**
      * This will tell you how the specified mount is mounted. rw, ro, etc...
      * 
@@ -744,19 +1708,14 @@ public class Toolbox {
      *             if we cannot determine how the mount is mounted.
      */
     public String getMountedAs(String path) throws Exception {
-        ArrayList<Mount> mounts = Remounter.getMounts();
-        if (mounts != null) {
-            for (Mount mount : mounts) {
-                if (path.contains(mount.getMountPoint().getAbsolutePath())) {
-                    Log.d(RootCommands.TAG, (String) mount.getFlags().toArray()[0]);
-                    return (String) mount.getFlags().toArray()[0];
-                }
-            }
-
-            throw new Exception();
-        } else {
+        Mount mount = MountTable.getCached(shell).findMount(path);
+        if (mount == null) {
             throw new Exception();
         }
+
+        String mountedAs = mount.isReadOnly() ? "ro" : "rw";
+        Log.d(RootCommands.TAG, mountedAs);
+        return mountedAs;
     }
 
     /**
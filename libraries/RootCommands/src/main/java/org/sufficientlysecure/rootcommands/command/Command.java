@@ -19,12 +19,17 @@ package org.sufficientlysecure.rootcommands.command;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.ResultFuture;
+import org.sufficientlysecure.rootcommands.util.TimingWheel;
 
 public abstract class Command {
     final String command[];
@@ -35,6 +40,37 @@ public abstract class Command {
     int timeout = RootCommands.DEFAULT_TIMEOUT;
     Shell shell = null;
 
+    // processAfterExecution is called on the shell output thread instead of in waitForFinish()
+    boolean asynchronous = false;
+    boolean afterExecutionProcessed = false;
+    final ResultFuture<CommandResult> result = new ResultFuture<CommandResult>() {
+        // mayInterruptIfRunning has no effect, only isolated commands can be stopped when running
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return Command.this.cancel();
+        }
+    };
+    volatile boolean cancelled = false;
+    // taken out of the shell queue, either to be written or on cancel or timeout
+    final AtomicBoolean dequeued = new AtomicBoolean(false);
+
+    // isolated commands are executed in a subshell that can be killed on timeout
+    boolean isolated = false;
+    volatile int processId = -1;
+    volatile boolean timedOut = false;
+    TimingWheel.Timeout deadline = null;
+
+    // stderr is not redirected to stdout, but passed to errorOutput()
+    boolean separateErrorOutput = false;
+    // stdout and stderr tokens not read yet, exit code read from stdout until then
+    final AtomicInteger openStreams = new AtomicInteger(2);
+    volatile int streamExitCode;
+
+    // System.nanoTime() when added to shell, written to shell and finished
+    long addedTime;
+    long writtenTime;
+    long finishedTime;
+
     public Command(String... command) {
         this.command = command;
     }
@@ -51,8 +87,159 @@ public abstract class Command {
      * @param id
      */
     public void addedToShell(Shell shell, int id) {
+        addedToShell(shell, id, false);
+    }
+
+    /**
+     * This is called from Shell after adding it
+     * 
+     * @param shell
+     * @param id
+     * @param asynchronous
+     *            true if submitted using Shell.submit(), afterExecution is then executed on the
+     *            shell output thread
+     */
+    public void addedToShell(Shell shell, int id, boolean asynchronous) {
         this.shell = shell;
         this.id = id;
+        this.asynchronous = asynchronous;
+        this.addedTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the id given by the Shell this command was added to
+     * 
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Isolated commands are executed in a subshell. On timeout only the processes of this command
+     * are killed and the shell continues with the next command, instead of closing the whole shell.
+     * Changes to the shell itself, like cd or export, do not persist after isolated commands.
+     * 
+     * @param isolated
+     */
+    public void setIsolated(boolean isolated) {
+        this.isolated = isolated;
+    }
+
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    /**
+     * By default stderr is redirected to stdout and passed to output(). With separate error
+     * output, lines written to stderr are passed to errorOutput() instead, so output() only gets
+     * stdout.
+     * 
+     * @param separateErrorOutput
+     */
+    public void setSeparateErrorOutput(boolean separateErrorOutput) {
+        this.separateErrorOutput = separateErrorOutput;
+    }
+
+    public boolean isSeparateErrorOutput() {
+        return separateErrorOutput;
+    }
+
+    /**
+     * This is called from Shell when the subshell of an isolated command was started
+     * 
+     * @param pid
+     */
+    public void setProcessId(int pid) {
+        this.processId = pid;
+    }
+
+    /**
+     * Returns the pid of the subshell of an isolated command, -1 if unknown
+     * 
+     * @return
+     */
+    public int getProcessId() {
+        return processId;
+    }
+
+    /**
+     * Timeout in milliseconds, counted from adding the command to a shell. This includes the time
+     * the command waits in the shell queue behind other commands, not only its own execution.
+     * 
+     * @return
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * This is called from Shell after adding it, the deadline is cancelled when the command
+     * finishes
+     * 
+     * @param deadline
+     */
+    public void setDeadline(TimingWheel.Timeout deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * This is called from Shell when the timeout of this command expired
+     */
+    public void setTimedOut() {
+        this.timedOut = true;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Withdraws this command from its shell if it was not written to the shell yet. Isolated
+     * commands that are already running are killed instead, other running commands are not stopped
+     * at all, see Shell.cancel().
+     * 
+     * @return true if the command was cancelled, false if it finished or keeps running
+     */
+    public boolean cancel() {
+        if (shell == null) {
+            Log.d(RootCommands.TAG, "Command was not added to a shell, nothing to cancel");
+            return false;
+        }
+        return shell.cancel(this);
+    }
+
+    /**
+     * This is called from Shell to take this command out of its queue, to write it to the shell or
+     * to withdraw it on cancel or timeout. Only the first caller succeeds.
+     * 
+     * @return false if the command was already taken out of the queue
+     */
+    public boolean dequeue() {
+        return dequeued.compareAndSet(false, true);
+    }
+
+    /**
+     * This is called from Shell when this command was cancelled
+     */
+    public void cancelled() {
+        cancelled = true;
+        result.setCancelled();
+        setExitCode(-1);
+        Log.d(RootCommands.TAG, "Command " + id + " was cancelled");
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns true if this command was killed because of its timeout
+     * 
+     * @return
+     */
+    public boolean isTimedOut() {
+        return timedOut;
     }
 
     /**
@@ -63,8 +250,11 @@ public abstract class Command {
     public String getCommand() {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < command.length; i++) {
-            // redirect stderr to stdout
-            sb.append(command[i] + " 2>&1");
+            sb.append(command[i]);
+            if (!separateErrorOutput) {
+                // redirect stderr to stdout
+                sb.append(" 2>&1");
+            }
             sb.append('\n');
         }
         Log.d(RootCommands.TAG, "Sending command(s): " + sb.toString());
@@ -72,9 +262,42 @@ public abstract class Command {
     }
 
     public void writeCommand(OutputStream out) throws IOException {
+        writtenTime = System.nanoTime();
         out.write(getCommand().getBytes());
     }
 
+    /**
+     * Output kept by this command, used for CommandResult. Commands that do not keep their output
+     * return null.
+     * 
+     * @return
+     */
+    public String getOutput() {
+        return null;
+    }
+
+    /**
+     * Future completed when the exit code of this command has been read by the shell
+     * 
+     * @return
+     */
+    public ResultFuture<CommandResult> getResult() {
+        return result;
+    }
+
+    /**
+     * Called from Shell for every line of raw output. Lines are decoded to Strings and passed to
+     * processOutput(String). Override this to parse output without decoding every line, the buffer
+     * is only valid during this call.
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void processOutput(byte[] buffer, int offset, int length) {
+        processOutput(new String(buffer, offset, length));
+    }
+
     public void processOutput(String line) {
         Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
 
@@ -96,6 +319,84 @@ public abstract class Command {
 
     public abstract void output(int id, String line);
 
+    /**
+     * Called from Shell for every line written to stderr by a command with separate error output,
+     * see processOutput(byte[], int, int)
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void processErrorOutput(byte[] buffer, int offset, int length) {
+        String line = new String(buffer, offset, length);
+        Log.d(RootCommands.TAG, "ID: " + id + ", Error output: " + line);
+
+        // see processOutput(String), only error output has to be checked
+        if (line.contains("Value too large for defined data type")) {
+            Log.e(RootCommands.TAG, "Busybox is broken with high probability due to line: " + line);
+            brokenBusyboxDetected = true;
+        }
+
+        errorOutput(id, line);
+    }
+
+    /**
+     * Lines written to stderr, only called with separate error output
+     * 
+     * @param id
+     * @param line
+     */
+    public void errorOutput(int id, String line) {
+    }
+
+    /**
+     * Commands returning a shell command here get their output as a raw stream: the shell
+     * executes the returned command first, which has to print the number of bytes the command
+     * itself will write. Exactly that many bytes are then passed to processStreamData(), without
+     * looking for lines or tokens in them.
+     * 
+     * @return null for normal line based output
+     */
+    public String getStreamLengthCommand() {
+        return null;
+    }
+
+    /**
+     * This is called from Shell with the announced length before the raw output of a streaming
+     * command, see getStreamLengthCommand()
+     * 
+     * @param length
+     */
+    public void streamStarted(long length) {
+    }
+
+    /**
+     * Called from Shell with raw output of a streaming command, possibly in several parts. Without
+     * resume the call may block until the bytes were consumed, the buffer is only valid during the
+     * call. With resume it must not block: the bytes not taken stay unchanged in the buffer and are
+     * passed again after resume was run.
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param resume
+     *            null if the calling thread may wait
+     * @return number of bytes taken
+     */
+    public int processStreamData(byte[] buffer, int offset, int length, Runnable resume) {
+        return length;
+    }
+
+    /**
+     * This is called from Shell after the raw output of a streaming command with the number of
+     * bytes the command wrote. If it wrote less than announced, the rest of the stream was padded
+     * with zeros by the shell.
+     * 
+     * @param written
+     */
+    public void streamEnded(long written) {
+    }
+
     public void processAfterExecution(int exitCode) {
         Log.d(RootCommands.TAG, "ID: " + id + ", ExitCode: " + exitCode);
 
@@ -108,13 +409,65 @@ public abstract class Command {
         Log.d(RootCommands.TAG, "Command " + id + " finished.");
     }
 
+    /**
+     * This is called from Shell when the stdout token of a command with separate error output was
+     * read. The command finishes when the stderr token was read, too.
+     * 
+     * @param code
+     */
+    public void outputFinished(int code) {
+        streamExitCode = code;
+        if (openStreams.decrementAndGet() == 0) {
+            setExitCode(code);
+        }
+    }
+
+    /**
+     * This is called from Shell when the stderr token of a command with separate error output was
+     * read, or the error output ended
+     */
+    public void errorOutputFinished() {
+        if (openStreams.decrementAndGet() == 0) {
+            setExitCode(streamExitCode);
+        }
+    }
+
     public void setExitCode(int code) {
         synchronized (this) {
+            if (finished) {
+                return;
+            }
+            if (deadline != null) {
+                deadline.cancel();
+            }
             exitCode = code;
             finished = true;
+            finishedTime = System.nanoTime();
             commandFinished(id);
             this.notifyAll();
         }
+
+        if (cancelled) {
+            return;
+        }
+
+        if (asynchronous) {
+            if (brokenBusyboxDetected) {
+                result.setException(new BrokenBusyboxException());
+                return;
+            }
+            try {
+                synchronized (this) {
+                    afterExecutionProcessed = true;
+                    processAfterExecution(code);
+                }
+            } catch (RuntimeException e) {
+                result.setException(e);
+                return;
+            }
+        }
+        result.set(new CommandResult(id, code, getOutput(), timedOut, addedTime, writtenTime,
+                finishedTime));
     }
 
     /**
@@ -132,39 +485,48 @@ public abstract class Command {
     }
 
     public void terminated(String reason) {
+        String message = "Command " + id + " did not finish, because of " + reason;
+        result.setException(timedOut ? new TimeoutException(message) : new IOException(message));
         setExitCode(-1);
         Log.d(RootCommands.TAG, "Command " + id + " did not finish, because of " + reason);
     }
 
     /**
-     * Waits for this command to finish and forwards exitCode into afterExecution method
+     * Waits for this command to finish and forwards exitCode into afterExecution method. The
+     * timeout of the command is enforced by its shell.
      * 
-     * @param timeout
      * @throws TimeoutException
      * @throws BrokenBusyboxException
+     * @throws CancellationException
+     *             if the command was cancelled
      */
     public void waitForFinish() throws TimeoutException, BrokenBusyboxException {
         synchronized (this) {
             while (!finished) {
                 try {
-                    this.wait(timeout);
+                    this.wait();
                 } catch (InterruptedException e) {
                     Log.e(RootCommands.TAG, "InterruptedException in waitForFinish()", e);
                 }
+            }
 
-                if (!finished) {
-                    finished = true;
-                    terminate("Timeout");
-                    throw new TimeoutException("Timeout has occurred.");
-                }
+            if (cancelled) {
+                throw new CancellationException("Command was cancelled.");
+            }
+
+            if (timedOut) {
+                throw new TimeoutException("Timeout has occurred.");
             }
 
             if (brokenBusyboxDetected) {
                 throw new BrokenBusyboxException();
             }
 
-            processAfterExecution(exitCode);
+            if (!afterExecutionProcessed) {
+                afterExecutionProcessed = true;
+                processAfterExecution(exitCode);
+            }
         }
     }
 
-}
\ No newline at end of file
+}
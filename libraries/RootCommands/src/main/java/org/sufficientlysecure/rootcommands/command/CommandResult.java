@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+/**
+ * Result of a command executed on a shell, delivered by Shell.submit()
+ */
+public class CommandResult {
+    private final int id;
+    private final int exitCode;
+    private final String output;
+    private final boolean timedOut;
+    private final long addedTime;
+    private final long writtenTime;
+    private final long finishedTime;
+
+    CommandResult(int id, int exitCode, String output, boolean timedOut, long addedTime,
+            long writtenTime, long finishedTime) {
+        this.id = id;
+        this.exitCode = exitCode;
+        this.output = output;
+        this.timedOut = timedOut;
+        this.addedTime = addedTime;
+        this.writtenTime = writtenTime;
+        this.finishedTime = finishedTime;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Output of the command, null if the command does not keep its output (see
+     * Command.getOutput())
+     *
+     * @return
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * True if the command was killed because of its timeout, the exit code is then the one of the
+     * killed subshell
+     *
+     * @return
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Time the command waited in the shell queue before it was written to the shell
+     *
+     * @return milliseconds
+     */
+    public long getQueueTime() {
+        return (writtenTime - addedTime) / 1000000L;
+    }
+
+    /**
+     * Time from writing the command to the shell until its exit code was read
+     *
+     * @return milliseconds
+     */
+    public long getExecutionTime() {
+        return (finishedTime - writtenTime) / 1000000L;
+    }
+
+    /**
+     * Time from adding the command to the shell until its exit code was read
+     *
+     * @return milliseconds
+     */
+    public long getTotalTime() {
+        return (finishedTime - addedTime) / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandResult id: " + id + ", exitCode: " + exitCode + ", timedOut: " + timedOut
+                + ", total time: " + getTotalTime() + " ms";
+    }
+}
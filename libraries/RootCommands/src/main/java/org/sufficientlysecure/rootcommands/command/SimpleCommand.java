@@ -23,6 +23,10 @@ public class SimpleCommand extends Command {
         super(command);
     }
 
+    public SimpleCommand(int timeout, String... command) {
+        super(timeout, command);
+    }
+
     @Override
     public void output(int id, String line) {
         sb.append(line).append('\n');
@@ -32,6 +36,7 @@ public class SimpleCommand extends Command {
     public void afterExecution(int id, int exitCode) {
     }
 
+    @Override
     public String getOutput() {
         return sb.toString();
     }
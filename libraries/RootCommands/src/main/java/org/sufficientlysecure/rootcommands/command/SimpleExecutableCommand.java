@@ -34,6 +34,7 @@ public class SimpleExecutableCommand extends ExecutableCommand {
     public void afterExecution(int id, int exitCode) {
     }
 
+    @Override
     public String getOutput() {
         return sb.toString();
     }
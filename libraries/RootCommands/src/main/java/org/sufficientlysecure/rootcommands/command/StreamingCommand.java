@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Exposes the raw stdout of a command as an InputStream. The length command is executed first and
+ * has to print the number of bytes the command will write, e.g. "wc -c < /data/file" for
+ * "cat /data/file". The shell announces this length before the output, so exactly that many bytes
+ * are passed through without decoding and without looking for the end of the command in them. The
+ * output is counted by dd on its way, if the command writes less the shell pads the rest and the
+ * stream fails at its end. The command runs in a subshell, changes like cd do not persist.
+ *
+ * stderr is always kept separate, see setSeparateErrorOutput(). Nothing is buffered: reads copy
+ * directly from the read buffer of the shell into the buffer of the caller. Until the reader took
+ * the bytes, the shell waits for it. With ShellExecutor.threadPool() the thread reading the shell
+ * blocks, with ShellExecutor.eventLoop() the shell is not polled in the meantime, other shells are
+ * not affected either way. Read the stream to its end or close it early to discard the rest, an
+ * unread stream stalls its shell until the timeout of the command.
+ */
+public class StreamingCommand extends Command {
+    private final String lengthCommand;
+    private final Pipe pipe = new Pipe();
+
+    // written by the shell output threads, read when the command finished
+    private volatile long length = -1;
+    private volatile long received = 0;
+    private volatile long written = -1;
+    private volatile boolean overlong = false;
+    private volatile String lastError = null;
+
+    /**
+     * @param lengthCommand
+     *            prints the number of bytes written by command
+     * @param command
+     */
+    public StreamingCommand(String lengthCommand, String... command) {
+        super(command);
+        this.lengthCommand = lengthCommand;
+        this.separateErrorOutput = true;
+    }
+
+    public StreamingCommand(int timeout, String lengthCommand, String... command) {
+        super(timeout, command);
+        this.lengthCommand = lengthCommand;
+        this.separateErrorOutput = true;
+    }
+
+    /**
+     * Raw stdout of the command. Reading ends after the announced number of bytes, it fails with an
+     * IOException if the command failed or did not write exactly that many bytes. If the command
+     * wrote less, the missing bytes are read as zeros before the IOException.
+     *
+     * @return
+     */
+    public InputStream getInputStream() {
+        return pipe;
+    }
+
+    /**
+     * Number of bytes announced by the length command, -1 while unknown
+     *
+     * @return
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    @Override
+    public String getStreamLengthCommand() {
+        return lengthCommand;
+    }
+
+    @Override
+    public void streamStarted(long length) {
+        this.length = length;
+    }
+
+    @Override
+    public int processStreamData(byte[] buffer, int offset, int length, Runnable resume) {
+        int taken = pipe.write(buffer, offset, length, resume);
+        received += taken;
+        return taken;
+    }
+
+    /**
+     * The killed command does not wait for the reader anymore
+     */
+    @Override
+    public void setTimedOut() {
+        super.setTimedOut();
+        pipe.discard("Command timed out");
+    }
+
+    @Override
+    public void cancelled() {
+        super.cancelled();
+        pipe.discard("Command was cancelled");
+    }
+
+    @Override
+    public void streamEnded(long written) {
+        this.written = written;
+    }
+
+    /**
+     * Lines on stdout are only written when the command wrote more than announced
+     */
+    @Override
+    public void output(int id, String line) {
+        overlong = true;
+    }
+
+    @Override
+    public void errorOutput(int id, String line) {
+        lastError = line;
+    }
+
+    @Override
+    public void afterExecution(int id, int exitCode) {
+    }
+
+    @Override
+    public void commandFinished(int id) {
+        super.commandFinished(id);
+
+        String failure = null;
+        if (exitCode != 0) {
+            failure = "Command failed with exit code " + exitCode;
+            if (lastError != null) {
+                failure += ": " + lastError;
+            }
+        } else if (length < 0) {
+            failure = "Length of output is unknown";
+        } else if (received < length) {
+            failure = "Output ended after " + received + " of " + length + " bytes";
+        } else if (written >= 0 && written < length) {
+            // the rest of the stream was padded by the shell
+            failure = "Output ended after " + written + " of " + length + " bytes";
+        } else if (overlong) {
+            failure = "Output was longer than " + length + " bytes";
+        }
+        if (failure != null) {
+            Log.d(RootCommands.TAG, "Stream of command " + id + " failed: " + failure);
+        }
+        pipe.finish(failure);
+    }
+
+    /**
+     * Hands bytes from the read buffer of the shell to the reader. An offer stays valid until the
+     * reader took all of its bytes, the stream was closed or discarded or the command finished.
+     */
+    private static class Pipe extends InputStream {
+        // part of the read buffer of the shell offered to the reader, null if there is none
+        private byte[] offered = null;
+        private int offeredStart;
+        private int readPosition;
+        private int offeredEnd;
+        // run when the offer was taken, for shells that did not wait for it
+        private Runnable resume = null;
+        private boolean finished = false;
+        // created when the command finished, so its stack trace shows where it failed
+        private IOException failure = null;
+        private String discarded = null;
+        private boolean closed = false;
+
+        /**
+         * Offers bytes to the reader. With resume, the bytes not taken yet stay offered and have to
+         * be passed unchanged again after resume was run, the call then returns how many were
+         * taken. Without resume, the call waits until all of them were taken.
+         *
+         * @return number of bytes taken, all of them if nobody reads anymore
+         */
+        synchronized int write(byte[] buffer, int offset, int length, Runnable resume) {
+            if (closed || finished || discarded != null) {
+                // nobody reads anymore
+                offered = null;
+                return length;
+            }
+            if (offered != null) {
+                // offered again after resume
+                int taken = readPosition - offeredStart;
+                if (readPosition == offeredEnd) {
+                    offered = null;
+                } else {
+                    offeredStart = readPosition;
+                    this.resume = resume;
+                }
+                return taken;
+            }
+
+            offered = buffer;
+            offeredStart = offset;
+            readPosition = offset;
+            offeredEnd = offset + length;
+            this.notifyAll();
+            if (resume != null) {
+                this.resume = resume;
+                return 0;
+            }
+
+            while (readPosition < offeredEnd && !closed && !finished && discarded == null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Log.e(RootCommands.TAG, "InterruptedException while waiting for reader", e);
+                }
+            }
+            offered = null;
+            return length;
+        }
+
+        synchronized void finish(String failure) {
+            this.finished = true;
+            if (failure != null) {
+                this.failure = new IOException(failure);
+            }
+            this.notifyAll();
+            runResume();
+        }
+
+        /**
+         * Drops the stream, e.g. when its command was killed, readers get an IOException
+         */
+        synchronized void discard(String reason) {
+            if (finished || discarded != null) {
+                return;
+            }
+            discarded = reason;
+            this.notifyAll();
+            runResume();
+        }
+
+        private void runResume() {
+            if (resume != null) {
+                Runnable r = resume;
+                resume = null;
+                r.run();
+            }
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (available() == 0 && !finished && !closed && discarded == null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while reading stream");
+                }
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                // the IOException(String, Throwable) constructor needs API 9
+                IOException e = new IOException(failure.getMessage());
+                e.initCause(failure);
+                throw e;
+            }
+            if (discarded != null) {
+                throw new IOException(discarded);
+            }
+            if (available() == 0) {
+                return -1;
+            }
+
+            int n = Math.min(length, offeredEnd - readPosition);
+            System.arraycopy(offered, readPosition, buffer, offset, n);
+            readPosition += n;
+            if (readPosition == offeredEnd) {
+                // wakes up a waiting shell, or lets another one poll again
+                this.notifyAll();
+                runResume();
+            }
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int available() {
+            return offered == null ? 0 : offeredEnd - readPosition;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            this.notifyAll();
+            runResume();
+        }
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the raw output of a shell into lines and token lines, working directly on bytes. Lines
+ * are handed to the listener as a range of the internal buffer, no Strings are created unless the
+ * listener does it.
+ *
+ * A token line looks like "TOKEN id exitCode", output printed by a command without trailing newline
+ * can precede the token on the same line. Isolated commands additionally report the pid of their
+ * subshell with "TOKENP id pid".
+ *
+ * A stream line "TOKENS id length" announces length bytes of raw output, which are passed to the
+ * listener unchanged, without looking for lines or tokens in them. The shell pads the output of a
+ * command writing less than announced, so exactly length bytes follow. The stream end line
+ * "TOKENE id written" afterwards tells how many of them the command wrote.
+ */
+public class OutputFramer implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final char PROCESS_ID_MARKER = 'P';
+    public static final char STREAM_MARKER = 'S';
+    public static final char STREAM_END_MARKER = 'E';
+
+    private final InputStream in;
+    private final byte[] token;
+
+    private byte[] buffer;
+    // start of the unconsumed data in buffer
+    private int start = 0;
+    // end of valid data in buffer
+    private int end = 0;
+
+    // result of parseTokenFields(), exit code, pid or stream length
+    private int parsedId;
+    private long parsedValue;
+
+    // raw bytes of an announced stream not passed to the listener yet
+    private long streamRemaining = 0;
+    // the listener did not take all stream bytes passed last
+    private boolean streamBlocked = false;
+
+    public interface Listener {
+        /**
+         * Called for every line of output without line terminator. The buffer is only valid during
+         * this call.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+
+        /**
+         * Called for every token line
+         *
+         * @return false if the token was not expected, the token line is then passed to onLine()
+         */
+        boolean onToken(int id, int exitCode);
+
+        /**
+         * Called for every process id line, looking like "TOKENP id pid"
+         */
+        void onProcessId(int id, int pid);
+
+        /**
+         * Called for every stream line, looking like "TOKENS id length"
+         *
+         * @return true to receive the following length bytes in onStreamData(), false to treat
+         *         them as normal output
+         */
+        boolean onStreamStart(int id, long length);
+
+        /**
+         * Called with the raw bytes of a stream, possibly in several parts. The buffer is only
+         * valid during this call. Bytes not taken stay unchanged in the buffer and are passed
+         * again by the next readAvailable(), nothing else is read until they were taken.
+         *
+         * @return number of bytes taken
+         */
+        int onStreamData(byte[] buffer, int offset, int length);
+
+        /**
+         * Called for every stream end line, looking like "TOKENE id written", with the number of
+         * bytes the command wrote. Less than announced if the stream was padded.
+         */
+        void onStreamEnd(int id, long written);
+    }
+
+    public OutputFramer(InputStream in, String token) {
+        this(in, token, DEFAULT_BUFFER_SIZE);
+    }
+
+    public OutputFramer(InputStream in, String token, int bufferSize) {
+        this.in = in;
+        this.token = token.getBytes();
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads the next line and passes it to the listener
+     *
+     * @param listener
+     * @return false on end of stream
+     * @throws IOException
+     */
+    public boolean readFrame(Listener listener) throws IOException {
+        if (streamRemaining > 0) {
+            if (start == end && !fill()) {
+                return false;
+            }
+            processStreamData(listener);
+            return true;
+        }
+
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            return false;
+        }
+        processLine(listener, lineEnd);
+        return true;
+    }
+
+    /**
+     * Reads only as many bytes as are available without blocking and passes all complete lines to
+     * the listener. An incomplete last line is kept until the rest of it was read.
+     *
+     * @param listener
+     * @return number of bytes read, -1 on end of stream
+     * @throws IOException
+     */
+    public int readAvailable(Listener listener) throws IOException {
+        if (streamBlocked) {
+            // reading could move the bytes still offered to the listener
+            processStreamData(listener);
+            if (streamBlocked) {
+                return 0;
+            }
+        }
+
+        int available = in.available();
+        int read = 0;
+        if (available > 0) {
+            makeRoom();
+            read = in.read(buffer, end, Math.min(available, buffer.length - end));
+            if (read < 0) {
+                if (streamRemaining == 0 && start < end) {
+                    // last line without trailing newline
+                    processLine(listener, end);
+                }
+                return -1;
+            }
+            end += read;
+        }
+
+        while (true) {
+            if (streamRemaining > 0) {
+                if (start == end) {
+                    return read;
+                }
+                processStreamData(listener);
+                if (streamBlocked) {
+                    return read;
+                }
+                continue;
+            }
+            int lineEnd = indexOfNewline();
+            if (lineEnd < 0) {
+                return read;
+            }
+            processLine(listener, lineEnd);
+        }
+    }
+
+    /**
+     * Passes buffered bytes of the current stream to the listener
+     */
+    private void processStreamData(Listener listener) {
+        int length = (int) Math.min(streamRemaining, end - start);
+        int taken = listener.onStreamData(buffer, start, length);
+        streamBlocked = taken < length;
+        start += taken;
+        streamRemaining -= taken;
+        if (start == end) {
+            // nothing left to compact on the next fill
+            start = 0;
+            end = 0;
+        }
+    }
+
+    /**
+     * Passes the line from start to lineEnd to the listener and consumes it
+     */
+    private void processLine(Listener listener, int lineEnd) {
+        int lineStart = start;
+        // consume line including '\n', if there is one at the end of the stream
+        start = lineEnd < end ? lineEnd + 1 : end;
+
+        int length = lineEnd - lineStart;
+        // handle \r\n like BufferedReader.readLine() does
+        if (length > 0 && buffer[lineStart + length - 1] == '\r') {
+            length--;
+        }
+
+        int pos = indexOfToken(lineStart, length);
+        if (pos < 0) {
+            listener.onLine(buffer, lineStart, length);
+            return;
+        }
+
+        if (pos > lineStart) {
+            listener.onLine(buffer, lineStart, pos - lineStart);
+        }
+        int remaining = lineStart + length - pos;
+        int fieldsStart = pos + token.length;
+        byte marker = fieldsStart < lineStart + length ? buffer[fieldsStart] : 0;
+        if (marker == PROCESS_ID_MARKER) {
+            if (parseTokenFields(fieldsStart + 1, lineStart + length)) {
+                listener.onProcessId(parsedId, (int) parsedValue);
+            } else {
+                listener.onLine(buffer, pos, remaining);
+            }
+        } else if (marker == STREAM_MARKER) {
+            if (parseTokenFields(fieldsStart + 1, lineStart + length)
+                    && listener.onStreamStart(parsedId, parsedValue)) {
+                streamRemaining = parsedValue;
+            } else {
+                listener.onLine(buffer, pos, remaining);
+            }
+        } else if (marker == STREAM_END_MARKER) {
+            if (parseTokenFields(fieldsStart + 1, lineStart + length)) {
+                listener.onStreamEnd(parsedId, parsedValue);
+            } else {
+                listener.onLine(buffer, pos, remaining);
+            }
+        } else if (!parseTokenFields(fieldsStart, lineStart + length)
+                || !listener.onToken(parsedId, (int) parsedValue)) {
+            listener.onLine(buffer, pos, remaining);
+        }
+    }
+
+    /**
+     * Reads the next line as String, used for handshakes where the output is small
+     *
+     * @return line or null on end of stream
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            return null;
+        }
+        int lineStart = start;
+        start = lineEnd < end ? lineEnd + 1 : end;
+
+        int length = lineEnd - lineStart;
+        if (length > 0 && buffer[lineStart + length - 1] == '\r') {
+            length--;
+        }
+        return new String(buffer, lineStart, length);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Fills the buffer until it contains a complete line
+     *
+     * @return index of '\n' ending the next line, end if the stream ended without newline, -1 if
+     *         there is no more data
+     */
+    private int findLineEnd() throws IOException {
+        // bytes after start that are already known to contain no '\n'
+        int scanned = 0;
+        while (true) {
+            for (int i = start + scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            scanned = end - start;
+
+            if (!fill()) {
+                // last line without trailing newline
+                return start < end ? end : -1;
+            }
+        }
+    }
+
+    private int indexOfNewline() {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads more data into the buffer, compacting or growing it if needed
+     *
+     * @return false on end of stream
+     */
+    private boolean fill() throws IOException {
+        makeRoom();
+
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * Compacts or grows the buffer if it is full
+     */
+    private void makeRoom() {
+        if (end == buffer.length) {
+            if (start > 0) {
+                // compact
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            } else {
+                // line is longer than buffer
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            }
+        }
+    }
+
+    private int indexOfToken(int offset, int length) {
+        int last = offset + length - token.length;
+        byte first = token[0];
+        outer: for (int i = offset; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < token.length; j++) {
+                if (buffer[i + j] != token[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses " id exitCode", " id pid", " id length" or " id written" following the token into
+     * parsedId and parsedValue
+     *
+     * @return false if the fields are malformed
+     */
+    private boolean parseTokenFields(int from, int to) {
+        int i = from;
+        if (i >= to || buffer[i] != ' ') {
+            return false;
+        }
+        i++;
+        int id = 0;
+        int digits = 0;
+        while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+            id = id * 10 + (buffer[i] - '0');
+            i++;
+            digits++;
+        }
+        if (digits == 0 || i >= to || buffer[i] != ' ') {
+            return false;
+        }
+        i++;
+        long value = 0;
+        digits = 0;
+        while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+            value = value * 10 + (buffer[i] - '0');
+            i++;
+            digits++;
+        }
+        if (digits == 0) {
+            return false;
+        }
+
+        parsedId = id;
+        parsedValue = value;
+        return true;
+    }
+
+}
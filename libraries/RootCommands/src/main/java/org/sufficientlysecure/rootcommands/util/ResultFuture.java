@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+
+/**
+ * Future that is completed by whoever produces the result, e.g. the output thread of a Shell.
+ * Callbacks are executed on the completing thread, or directly on the calling thread if the future
+ * is already done when they are added.
+ *
+ * @param <V>
+ *            type of the result
+ */
+public class ResultFuture<V> implements Future<V> {
+    private static final int RUNNING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private int state = RUNNING;
+    private V result;
+    private Throwable failure;
+    private List<Callback<? super V>> callbacks = new ArrayList<Callback<? super V>>();
+
+    public interface Callback<V> {
+        void onSuccess(V result);
+
+        void onFailure(Throwable failure);
+    }
+
+    public interface Transformer<V, T> {
+        T transform(V result) throws Exception;
+    }
+
+    public interface AsyncTransformer<V, T> {
+        ResultFuture<T> transform(V result) throws Exception;
+    }
+
+    /**
+     * Returns a future that is already completed with the given result
+     *
+     * @param result
+     * @return
+     */
+    public static <V> ResultFuture<V> immediate(V result) {
+        ResultFuture<V> future = new ResultFuture<V>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * Completes this future with a result
+     *
+     * @param result
+     * @return false if the future was already done
+     */
+    public boolean set(V result) {
+        return complete(SUCCEEDED, result, null);
+    }
+
+    /**
+     * Completes this future with a failure, get() will throw an ExecutionException wrapping it
+     *
+     * @param failure
+     * @return false if the future was already done
+     */
+    public boolean setException(Throwable failure) {
+        return complete(FAILED, null, failure);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return setCancelled();
+    }
+
+    /**
+     * Completes this future as cancelled. Subclasses overriding cancel() to stop the underlying
+     * work call this once the work was stopped.
+     *
+     * @return false if the future was already done
+     */
+    public boolean setCancelled() {
+        return complete(CANCELLED, null, new CancellationException("Future was cancelled."));
+    }
+
+    private boolean complete(int newState, V newResult, Throwable newFailure) {
+        List<Callback<? super V>> toRun;
+        synchronized (this) {
+            if (state != RUNNING) {
+                return false;
+            }
+            state = newState;
+            result = newResult;
+            failure = newFailure;
+            toRun = callbacks;
+            callbacks = null;
+            this.notifyAll();
+        }
+
+        for (Callback<? super V> callback : toRun) {
+            dispatch(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a callback that is executed when this future is done
+     *
+     * @param callback
+     */
+    public void addCallback(Callback<? super V> callback) {
+        synchronized (this) {
+            if (state == RUNNING) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback);
+    }
+
+    private void dispatch(Callback<? super V> callback) {
+        try {
+            if (state == SUCCEEDED) {
+                callback.onSuccess(result);
+            } else {
+                callback.onFailure(failure);
+            }
+        } catch (RuntimeException e) {
+            Log.e(RootCommands.TAG, "Exception in future callback", e);
+        }
+    }
+
+    /**
+     * Returns a future completed with the transformed result of this future. Failures are passed
+     * through.
+     *
+     * @param transformer
+     * @return
+     */
+    public <T> ResultFuture<T> transform(final Transformer<? super V, ? extends T> transformer) {
+        final ResultFuture<T> transformed = new ResultFuture<T>();
+        addCallback(new Callback<V>() {
+            public void onSuccess(V value) {
+                try {
+                    transformed.set(transformer.transform(value));
+                } catch (Exception e) {
+                    transformed.setException(e);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                transformed.setException(t);
+            }
+        });
+        return transformed;
+    }
+
+    /**
+     * Returns a future completed with the result of the future returned by the transformer, e.g.
+     * to execute a command after this one finished.
+     *
+     * @param transformer
+     * @return
+     */
+    public <T> ResultFuture<T> chain(final AsyncTransformer<? super V, T> transformer) {
+        final ResultFuture<T> chained = new ResultFuture<T>();
+        addCallback(new Callback<V>() {
+            public void onSuccess(V value) {
+                try {
+                    transformer.transform(value).addCallback(new Callback<T>() {
+                        public void onSuccess(T chainedValue) {
+                            chained.set(chainedValue);
+                        }
+
+                        public void onFailure(Throwable t) {
+                            chained.setException(t);
+                        }
+                    });
+                } catch (Exception e) {
+                    chained.setException(e);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                chained.setException(t);
+            }
+        });
+        return chained;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state != RUNNING;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (state == RUNNING) {
+            this.wait();
+        }
+        return getResult();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (state == RUNNING) {
+            if (remaining <= 0) {
+                throw new TimeoutException("Timeout has occurred.");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        switch (state) {
+        case SUCCEEDED:
+            return result;
+        case CANCELLED:
+            throw (CancellationException) failure;
+        default:
+            throw new ExecutionException(failure);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+
+/**
+ * Caches what is needed to start shells: the path of su, the environment of this process and
+ * LD_LIBRARY_PATH. The su path is probed once and then only revalidated by the modification time of
+ * the su binary, a single stat instead of checking all well-known locations on every start. With a
+ * cache file the su path also survives restarts of the app.
+ */
+public class ShellEnvironment {
+    private static final Object lock = new Object();
+    private static File cacheFile = null;
+    private static boolean cacheFileRead = false;
+
+    // su path and modification time of the su binary when it was found, null if not probed yet
+    private static String suPath = null;
+    private static long suModified = 0;
+
+    // the environment of a process can not change, it is built once
+    private static String[] environment = null;
+    private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
+
+    /**
+     * Keeps the su path in this file, e.g. new File(context.getCacheDir(), "rootcommands-su")
+     *
+     * @param file
+     *            null to only cache in memory
+     */
+    public static void setCacheFile(File file) {
+        synchronized (lock) {
+            cacheFile = file;
+            cacheFileRead = false;
+        }
+    }
+
+    /**
+     * Returns the path of the su executable, probed by Utils.getSuPath() if su was not found before
+     * or the su binary changed since then
+     *
+     * @return
+     */
+    public static String getSuPath() {
+        synchronized (lock) {
+            if (suPath == null && cacheFile != null && !cacheFileRead) {
+                cacheFileRead = true;
+                readCacheFile();
+            }
+
+            if (suPath != null) {
+                long modified = new File(suPath).lastModified();
+                if (modified != 0 && modified == suModified) {
+                    return suPath;
+                }
+                Log.d(RootCommands.TAG, "su binary changed, probing again");
+                suPath = null;
+            }
+
+            String path = Utils.getSuPath();
+            long modified = new File(path).lastModified();
+            // not found in a well-known location, probe again next time
+            if (modified == 0) {
+                return path;
+            }
+
+            suPath = path;
+            suModified = modified;
+            writeCacheFile();
+            return path;
+        }
+    }
+
+    /**
+     * Forgets the su path, the next shell start probes again
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            suPath = null;
+            if (cacheFile != null) {
+                cacheFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Environment of this process followed by customAddedEnv, see Utils.runWithEnv()
+     *
+     * @param customAddedEnv
+     *            entries like "NAME=value", may be null
+     * @return
+     */
+    public static String[] getEnvironment(List<String> customAddedEnv) {
+        String[] base;
+        synchronized (lock) {
+            if (environment == null) {
+                Map<String, String> env = System.getenv();
+                environment = new String[env.size()];
+                int i = 0;
+                for (Map.Entry<String, String> entry : env.entrySet()) {
+                    environment[i++] = entry.getKey() + "=" + entry.getValue();
+                }
+            }
+            base = environment;
+        }
+
+        if (customAddedEnv == null || customAddedEnv.isEmpty()) {
+            return base.clone();
+        }
+        String[] envArray = new String[base.length + customAddedEnv.size()];
+        System.arraycopy(base, 0, envArray, 0, base.length);
+        int i = base.length;
+        for (String entry : customAddedEnv) {
+            envArray[i++] = entry;
+        }
+        return envArray;
+    }
+
+    /**
+     * LD_LIBRARY_PATH of this process, on some versions of Android (ICS) it has to be passed over
+     * su
+     *
+     * @return
+     */
+    public static String getLdLibraryPath() {
+        return LD_LIBRARY_PATH;
+    }
+
+    /**
+     * Cache file contains the su path and its modification time on separate lines
+     */
+    private static void readCacheFile() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile)));
+            String path = reader.readLine();
+            String modified = reader.readLine();
+            if (path != null && modified != null) {
+                suModified = Long.parseLong(modified);
+                suPath = path;
+                Log.d(RootCommands.TAG, "su path read from cache: " + suPath);
+            }
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException while reading su cache", e);
+        } catch (NumberFormatException e) {
+            Log.e(RootCommands.TAG, "Invalid su cache", e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void writeCacheFile() {
+        if (cacheFile == null) {
+            return;
+        }
+        // write to a temporary file first, so a crash does not leave a partial cache
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write((suPath + "\n" + suModified + "\n").getBytes());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(cacheFile)) {
+                Log.e(RootCommands.TAG, "Could not rename su cache to " + cacheFile);
+            }
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "IOException while writing su cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "IOException while closing", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+
+/**
+ * Hashed timing wheel executing timeouts on a single thread. Scheduling and cancelling are O(1), so
+ * the cost of tracking deadlines does not grow with the number of outstanding commands. Timeouts
+ * expire with a precision of one tick. While no timeout is pending the thread is parked instead of
+ * ticking, schedule() wakes it up again.
+ */
+public class TimingWheel {
+    private final long tickDuration;
+    private final Timeout[] buckets;
+    private final int mask;
+
+    // handed over to the worker thread, only the worker thread touches the buckets
+    private final ConcurrentLinkedQueue<Timeout> addedTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private final String threadName;
+    // started on first schedule, startTime is written before worker
+    private volatile Thread worker = null;
+    private volatile long startTime;
+    private long tick = 0;
+    // timeouts in the buckets, only used by the worker thread
+    private int pending = 0;
+    // set by the worker before it checks for added timeouts and parks
+    private volatile boolean parked = false;
+
+    /**
+     * Handle of a scheduled task
+     */
+    public final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        // nanoseconds relative to startTime
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        // bucket list, only used by the worker thread
+        private Timeout next;
+        private Timeout prev;
+        private int bucket = -1;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it is not executed yet
+         *
+         * @return false if it already expired or was cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * @param tickDuration
+     *            milliseconds per tick
+     * @param ticksPerWheel
+     *            number of buckets, rounded up to a power of two
+     * @param threadName
+     */
+    public TimingWheel(long tickDuration, int ticksPerWheel, String threadName) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Invalid timing wheel: tick " + tickDuration
+                    + ", ticks per wheel " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration * 1000000L;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Executes task on the timer thread after delay. The task should return quickly, as all
+     * timeouts are executed on the same thread.
+     *
+     * @param task
+     * @param delay
+     *            milliseconds
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (worker == null) {
+            synchronized (this) {
+                if (worker == null) {
+                    startTime = System.nanoTime();
+                    Thread thread = new Thread(workerRunnable, threadName);
+                    thread.setDaemon(true);
+                    thread.start();
+                    worker = thread;
+                }
+            }
+        }
+        long now = System.nanoTime() - startTime;
+
+        Timeout timeout = new Timeout(task, now + Math.max(delay, 0) * 1000000L);
+        addedTimeouts.add(timeout);
+        if (parked) {
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    private Runnable workerRunnable = new Runnable() {
+        public void run() {
+            while (true) {
+                waitUntilScheduled();
+                waitForNextTick();
+                removeCancelled();
+                transferAdded();
+                expireBucket(buckets[(int) (tick & mask)]);
+                tick++;
+            }
+        }
+    };
+
+    /**
+     * Parks the worker while the wheel is empty. No bucket is filled then, so the tick can skip
+     * ahead to the current time instead of catching up on the missed ticks.
+     */
+    private void waitUntilScheduled() {
+        if (pending > 0 || !addedTimeouts.isEmpty()) {
+            return;
+        }
+        // drop timeouts cancelled before they were transferred
+        removeCancelled();
+        parked = true;
+        // an unpark from schedule() between the check and park() lets park() return at once
+        while (addedTimeouts.isEmpty()) {
+            LockSupport.park(this);
+        }
+        parked = false;
+        tick = Math.max(tick, (System.nanoTime() - startTime) / tickDuration);
+    }
+
+    private void waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Log.e(RootCommands.TAG, "InterruptedException in timing wheel", e);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = addedTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / buckets.length;
+            // deadlines in the past expire with the current tick
+            long ticks = Math.max(calculated, tick);
+            int index = (int) (ticks & mask);
+
+            timeout.bucket = index;
+            timeout.next = buckets[index];
+            if (buckets[index] != null) {
+                buckets[index].prev = timeout;
+            }
+            buckets[index] = timeout;
+            pending++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            // not yet transferred to a bucket
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void expireBucket(Timeout head) {
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        Log.e(RootCommands.TAG, "Exception in timeout task", t);
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (buckets[timeout.bucket] == timeout) {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+}
@@ -21,7 +21,6 @@ package org.sufficientlysecure.rootcommands.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Map;
 
 import org.sufficientlysecure.rootcommands.RootCommands;
 
@@ -81,18 +80,8 @@ public class Utils {
     public static Process runWithEnv(String command, ArrayList<String> customAddedEnv,
             String baseDirectory) throws IOException {
 
-        Map<String, String> environment = System.getenv();
-        String[] envArray = new String[environment.size()
-                + (customAddedEnv != null ? customAddedEnv.size() : 0)];
-        int i = 0;
-        for (Map.Entry<String, String> entry : environment.entrySet()) {
-            envArray[i++] = entry.getKey() + "=" + entry.getValue();
-        }
-        if (customAddedEnv != null) {
-            for (String entry : customAddedEnv) {
-                envArray[i++] = entry;
-            }
-        }
+        // environment of this process is only converted once
+        String[] envArray = ShellEnvironment.getEnvironment(customAddedEnv);
 
         Process process;
         if (baseDirectory == null) {